@@ -0,0 +1,42 @@
+#!/bin/sh
+# Fast-start launcher for the headless SPNCli
+#
+#   scripts/spn-cli.sh build        compiles, checks SPNTables and creates the AppCDS archive
+#   scripts/spn-cli.sh <args>...    runs SPNCli with the archive (see SPNCli for the commands)
+#
+# The archive holds the classes loaded by a training run of all commands, so later invocations
+# map them instead of loading and verifying them. It is only valid for the JDK and the jar it was
+# created with, so run "build" again after every change. AppCDS requires a jar on the class path.
+set -e
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT="$ROOT/out/cli"
+JAR="$OUT/spn-cli.jar"
+ARCHIVE="$OUT/spn-cli.jsa"
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+JAVAC=${JAVA_HOME:+$JAVA_HOME/bin/}javac
+JAR_TOOL=${JAVA_HOME:+$JAVA_HOME/bin/}jar
+# Short runs are dominated by start-up, the C1 compiler is enough for them
+JVM_OPTIONS="-XX:TieredStopAtLevel=1 -Xshare:auto"
+
+if [ "$1" = "build" ]; then
+    rm -rf "$OUT"
+    mkdir -p "$OUT/classes"
+    "$JAVAC" -d "$OUT/classes" "$ROOT"/src/*.java
+    # Precomputed tables: fails if src/SPNTables.java no longer matches the S-box and permutation
+    "$JAVA" -cp "$OUT/classes" SPNTablesGenerator --check "$ROOT/src/SPNTables.java"
+    "$JAR_TOOL" --create --file "$JAR" --main-class SPNCli -C "$OUT/classes" .
+
+    # Training run that touches the classes of all commands, they end up in the archive
+    TRAINING=$(mktemp -d)
+    "$JAVA" -XX:ArchiveClassesAtExit="$ARCHIVE" $JVM_OPTIONS -cp "$JAR" SPNCli train "$TRAINING" > /dev/null
+    rm -rf "$TRAINING"
+    echo "Created $ARCHIVE"
+    exit 0
+fi
+
+if [ ! -f "$ARCHIVE" ]; then
+    echo "No archive found, run: $0 build" >&2
+    exit 2
+fi
+exec "$JAVA" -XX:SharedArchiveFile="$ARCHIVE" $JVM_OPTIONS -cp "$JAR" SPNCli "$@"
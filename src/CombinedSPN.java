@@ -1,3 +1,6 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
 /**
  * SPN Encryption/Decryption Implementation
  *
@@ -14,10 +17,17 @@
  * 1. Encryption and decryption using SPN
  * 2. CTR mode operation
  * 3. Decoding of an encrypted message
+ *
+ * Started with arguments the program encrypts or decrypts files instead (see SPNBatch).
  */
 public class CombinedSPN {
     // Main method demonstrating the encryption capabilities
     public static void main(String[] args) {
+        // With arguments the program works as batch tool for files, see SPNBatch
+        if (args.length > 0) {
+            System.exit(SPNBatch.run(args));
+        }
+
         // Create an SPN instance with the specified parameters (r=4, n=4, m=4)
         SPN spn = new SPN(4, 4, 4);
 
@@ -76,24 +86,40 @@ public class CombinedSPN {
      * - n = 4 (bits per S-box)
      * - m = 4 (number of S-boxes)
      * - s = 32 (key size in bits)
+     *
+     * S-box and permutation are fixed to this network, SPNEngine supports other n, m, S-boxes
+     * and permutations with blocks up to 64 bits.
      */
-    static class SPN {
+    static class SPN implements SPNBlockCipher {
         // S-Box as specified in the assignment
         // x:    0  1  2  3  4  5  6  7  8  9  A  B  C  D  E  F
         // S(x): E  4  D  1  2  F  B  8  3  A  6  C  5  9  0  7
-        private static final int[] sBox = {0xE, 4, 0xD, 1, 2, 0xF, 0xB, 8, 3, 0xA, 6, 0xC, 5, 9, 0, 7};
+        static final int[] DEFAULT_SBOX = {0xE, 4, 0xD, 1, 2, 0xF, 0xB, 8, 3, 0xA, 6, 0xC, 5, 9, 0, 7};
 
         // Bit permutation as specified in the assignment
         // x:    0  1  2  3  4  5  6  7  8  9 10 11 12 13 14 15
         // β(x): 0  4  8 12  1  5  9 13  2  6 10 14  3  7 11 15
         private static final int[] permutation = {0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14, 3, 7, 11, 15};
 
+        // Lookup tables of the default S-box, shared by all instances that use it. They are
+        // constants generated by SPNTablesGenerator, the build checks them against blockTables.
+        private static final int[][][] DEFAULT_TABLES = SPNTables.DEFAULT;
+
         private final int s;
         private final int n;
         private final int m;
         private int[][] roundKeys;
         private final int rounds;
-        private int[] inv;
+        private final int[] sBox;
+        private final int[] inv;
+
+        // Lookup tables for the block operations on packed 16-bit ints, indexed by nibble position
+        // (0 = most significant nibble) and nibble value. The SP tables combine the S-box with the
+        // bit permutation, the S tables only place the substituted nibble at its position.
+        private final int[][] spEnc;
+        private final int[][] sEnc;
+        private final int[][] spDec;
+        private final int[][] sDec;
 
         // Default key as specified in the assignment: 0011 1010 1001 0100 1101 0110 0011 1111
         private static final int[] DEFAULT_KEY = {
@@ -109,27 +135,45 @@ public class CombinedSPN {
 
         private int[] key;
 
+        // Round keys packed into 16-bit ints, the decryption keys are already bit permuted
+        private int[] packedRoundKeys;
+        private int[] packedDecryptionKeys;
+
         /**
          * Constructor using the default key
          */
         public SPN(int rounds, int n, int m) {
-            this.n = n;
-            this.m = m;
-            this.s = n * m;
-            this.rounds = rounds;
-            this.key = DEFAULT_KEY;
-            generateRoundKeys();
+            this(rounds, n, m, DEFAULT_KEY);
         }
 
         /**
          * Constructor using a custom key (for testing)
          */
         public SPN(int rounds, int n, int m, int[] customKey) {
+            this(rounds, n, m, customKey, DEFAULT_SBOX);
+        }
+
+        /**
+         * Constructor using a custom key and a custom S-box, e.g. one found by SPNSBoxSearch
+         *
+         * @param customSBox Permutation of the values 0..15
+         */
+        public SPN(int rounds, int n, int m, int[] customKey, int[] customSBox) {
+            if (customSBox.length != 16 || Arrays.stream(customSBox).distinct().filter(v -> v >= 0 && v < 16).count() != 16) {
+                throw new IllegalArgumentException("S-box must be a permutation of 0..15");
+            }
             this.n = n;
             this.m = m;
             this.s = n * m;
             this.rounds = rounds;
             this.key = customKey;
+            this.sBox = customSBox.clone();
+            this.inv = Helper.inverseArray(sBox);
+            int[][][] tables = Arrays.equals(sBox, DEFAULT_SBOX) ? DEFAULT_TABLES : blockTables(sBox);
+            this.spEnc = tables[0];
+            this.sEnc = tables[1];
+            this.spDec = tables[2];
+            this.sDec = tables[3];
             generateRoundKeys();
         }
 
@@ -141,10 +185,210 @@ public class CombinedSPN {
          * - Second index represents the round key values
          */
         private void generateRoundKeys() {
+            SPNEvents.KeySchedule event = SPNEvents.begin(SPNEvents.KeySchedule::new);
             this.roundKeys = new int[rounds + 1][m];
             for (int i = 0; i <= rounds; i++) {
                 roundKeys[i] = genRoundKey(i);
             }
+
+            // Packed variants for the block operations, they are only defined for 16-bit blocks
+            if (n == 4 && m == 4) {
+                this.packedRoundKeys = new int[rounds + 1];
+                this.packedDecryptionKeys = new int[rounds + 1];
+                for (int i = 0; i <= rounds; i++) {
+                    packedRoundKeys[i] = pack(roundKeys[i]);
+                }
+                packedDecryptionKeys[0] = packedRoundKeys[rounds];
+                for (int round = 1; round < rounds; round++) {
+                    packedDecryptionKeys[round] = pack(bitPermutation(roundKeys[rounds - round]));
+                }
+                packedDecryptionKeys[rounds] = packedRoundKeys[0];
+            }
+
+            if (SPNEvents.end(event)) {
+                event.rounds = rounds;
+                event.commit();
+            }
+        }
+
+        /**
+         * Encrypts a single block packed into an int
+         *
+         * Computes the same result as encrypt, but works on the 16 bits of an int and uses
+         * lookup tables instead of converting between strings and arrays in every round.
+         *
+         * @param block Plaintext block (0..65535)
+         * @return Encrypted block
+         */
+        @Override
+        public int encryptBlock(int block) {
+            int[] keys = blockKeys(packedRoundKeys);
+            int state = block ^ keys[0];
+            for (int round = 1; round < rounds; round++) {
+                state = substitute(spEnc, state) ^ keys[round];
+            }
+            return substitute(sEnc, state) ^ keys[rounds];
+        }
+
+        /**
+         * Decrypts a single block packed into an int
+         *
+         * @param block Encrypted block (0..65535)
+         * @return Decrypted block
+         */
+        @Override
+        public int decryptBlock(int block) {
+            int[] keys = blockKeys(packedDecryptionKeys);
+            int state = block ^ keys[0];
+            for (int round = 1; round < rounds; round++) {
+                state = substitute(spDec, state) ^ keys[round];
+            }
+            return substitute(sDec, state) ^ keys[rounds];
+        }
+
+        /**
+         * Encrypts a single block and reports every intermediate state to the observer
+         *
+         * This is a separate code path for teaching and debugging, encryptBlock(int) is not
+         * affected by it. Without observer it simply calls encryptBlock(int).
+         *
+         * @param block Plaintext block (0..65535)
+         * @param observer Receives the states of every round, may be null
+         * @return Encrypted block
+         */
+        public int encryptBlock(int block, SPNRoundObserver observer) {
+            if (observer == null) {
+                return encryptBlock(block);
+            }
+            int[] keys = blockKeys(packedRoundKeys);
+            int state = block ^ keys[0];
+            observer.onRound(0, block, block, state);
+            for (int round = 1; round < rounds; round++) {
+                int substituted = substitute(sEnc, state);
+                int permuted = permuteBits(substituted);
+                state = permuted ^ keys[round];
+                observer.onRound(round, substituted, permuted, state);
+            }
+            int substituted = substitute(sEnc, state);
+            state = substituted ^ keys[rounds];
+            observer.onRound(rounds, substituted, substituted, state);
+            return state;
+        }
+
+        /**
+         * Decrypts a single block and reports every intermediate state to the observer
+         *
+         * @param block Encrypted block (0..65535)
+         * @param observer Receives the states of every round, may be null
+         * @return Decrypted block
+         */
+        public int decryptBlock(int block, SPNRoundObserver observer) {
+            if (observer == null) {
+                return decryptBlock(block);
+            }
+            int[] keys = blockKeys(packedDecryptionKeys);
+            int state = block ^ keys[0];
+            observer.onRound(0, block, block, state);
+            for (int round = 1; round < rounds; round++) {
+                int substituted = substitute(sDec, state);
+                int permuted = permuteBits(substituted);
+                state = permuted ^ keys[round];
+                observer.onRound(round, substituted, permuted, state);
+            }
+            int substituted = substitute(sDec, state);
+            state = substituted ^ keys[rounds];
+            observer.onRound(rounds, substituted, substituted, state);
+            return state;
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+
+        // Packed round keys for code generators (see SPNCipherCompiler), must not be modified
+        int[] packedRoundKeys() {
+            return blockKeys(packedRoundKeys);
+        }
+
+        int[] packedDecryptionKeys() {
+            return blockKeys(packedDecryptionKeys);
+        }
+
+        /**
+         * Returns all lookup tables in one array: spEnc, sEnc, spDec and sDec, each with the
+         * 16 entries of nibble position 0 to 3, i.e. entry (table * 4 + position) * 16 + value
+         */
+        int[] lookupTables() {
+            int[] tables = new int[256];
+            int[][][] all = {spEnc, sEnc, spDec, sDec};
+            for (int table = 0; table < 4; table++) {
+                for (int position = 0; position < 4; position++) {
+                    System.arraycopy(all[table][position], 0, tables, (table * 4 + position) * 16, 16);
+                }
+            }
+            return tables;
+        }
+
+        // Bit permutation of a packed 16-bit block, bit 0 of the permutation is the most significant bit
+        private static int permuteBits(int state) {
+            int result = 0;
+            for (int i = 0; i < 16; i++) {
+                result |= ((state >>> (15 - i)) & 1) << (15 - permutation[i]);
+            }
+            return result;
+        }
+
+        private int[] blockKeys(int[] keys) {
+            if (keys == null) {
+                throw new IllegalStateException("Block operations require n = 4 and m = 4");
+            }
+            return keys;
+        }
+
+        // Looks up all four nibbles of the state and combines the results
+        private static int substitute(int[][] tables, int state) {
+            return tables[0][(state >>> 12) & 0xF]
+                ^ tables[1][(state >>> 8) & 0xF]
+                ^ tables[2][(state >>> 4) & 0xF]
+                ^ tables[3][state & 0xF];
+        }
+
+        // Builds the SP and S tables for encryption and decryption with an S-box
+        static int[][][] blockTables(int[] box) {
+            int[] inverse = Helper.inverseArray(box);
+            return new int[][][] {
+                substitutionTables(box, true),
+                substitutionTables(box, false),
+                substitutionTables(inverse, true),
+                substitutionTables(inverse, false)
+            };
+        }
+
+        // Builds the lookup tables for every nibble position, optionally followed by the bit permutation
+        private static int[][] substitutionTables(int[] box, boolean permute) {
+            int[][] tables = new int[4][16];
+            for (int position = 0; position < 4; position++) {
+                for (int value = 0; value < 16; value++) {
+                    int substituted = box[value];
+                    int result = 0;
+                    for (int bit = 0; bit < 4; bit++) {
+                        int index = position * 4 + bit;
+                        int target = permute ? permutation[index] : index;
+                        result |= ((substituted >>> (3 - bit)) & 1) << (15 - target);
+                    }
+                    tables[position][value] = result;
+                }
+            }
+            return tables;
+        }
+
+        // Packs an array of four 4-bit values into a 16-bit int, first value in the highest nibble
+        private static int pack(int[] fourBitArray) {
+            int packed = 0;
+            for (int value : fourBitArray) {
+                packed = (packed << 4) | value;
+            }
+            return packed;
         }
 
         /**
@@ -160,6 +404,17 @@ public class CombinedSPN {
          * @return Encrypted binary string
          */
         public String encrypt(String text) {
+            long start = SPNMetrics.ENABLED ? System.nanoTime() : 0;
+            String result = encryptString(text);
+            if (SPNMetrics.ENABLED) {
+                SPNMetrics.record(SPNMetrics.Operation.ENCRYPT, SPNMetrics.CipherMode.BLOCK, SPNMetrics.Mode.STRING,
+                    1, 0, System.nanoTime() - start);
+            }
+            return result;
+        }
+
+        // encrypt without metrics, for callers that record the whole operation themselves
+        private String encryptString(String text) {
             int[] message = Helper.splitBinaryString(text);
             message = initialEncipherStep(message);
             message = encipher(1, message);
@@ -180,12 +435,90 @@ public class CombinedSPN {
          * @return Decrypted binary string
          */
         public String decrypt(String text) {
+            long start = SPNMetrics.ENABLED ? System.nanoTime() : 0;
             int[] cipher = Helper.splitBinaryString(text);
-            inv = Helper.inverseArray(sBox);
             cipher = initialDecipherStep(cipher);
             cipher = decipher(1, cipher);
             cipher = Helper.fourBitArraytoBinaryArray(cipher);
-            return Helper.intArrayToString(cipher);
+            String result = Helper.intArrayToString(cipher);
+            if (SPNMetrics.ENABLED) {
+                SPNMetrics.record(SPNMetrics.Operation.DECRYPT, SPNMetrics.CipherMode.BLOCK, SPNMetrics.Mode.STRING,
+                    1, 0, System.nanoTime() - start);
+            }
+            return result;
+        }
+
+        /**
+         * Encrypts a binary string like encrypt(String) and reports every intermediate state to
+         * the observer
+         *
+         * A separate loop over the same steps as encipher, encrypt(String) is not affected by it.
+         * Without observer it simply calls encrypt(String).
+         *
+         * @param text Binary string to be encrypted, at most 32 bits
+         * @param observer Receives the states of every round, may be null
+         * @return Encrypted binary string
+         * @throws IllegalArgumentException if the text is wider than the 32 bits of the observer
+         */
+        public String encrypt(String text, SPNRoundObserver observer) {
+            if (observer == null) {
+                return encrypt(text);
+            }
+            int[] message = Helper.splitBinaryString(text);
+            int[] state = initialEncipherStep(message);
+            observer.onRound(0, observed(message), observed(message), observed(state));
+            for (int round = 1; round <= rounds; round++) {
+                sBox(state);
+                int substituted = observed(state);
+                int permuted = substituted;
+                if (round < rounds) {
+                    state = bitPermutation(state);
+                    permuted = observed(state);
+                }
+                state = Helper.xorArrays(state, roundKeys[round]);
+                observer.onRound(round, substituted, permuted, observed(state));
+            }
+            return Helper.intArrayToString(Helper.fourBitArraytoBinaryArray(state));
+        }
+
+        /**
+         * Decrypts a binary string like decrypt(String) and reports every intermediate state to
+         * the observer
+         *
+         * @param text Encrypted binary string, at most 32 bits
+         * @param observer Receives the states of every round, may be null
+         * @return Decrypted binary string
+         * @throws IllegalArgumentException if the text is wider than the 32 bits of the observer
+         */
+        public String decrypt(String text, SPNRoundObserver observer) {
+            if (observer == null) {
+                return decrypt(text);
+            }
+            int[] cipher = Helper.splitBinaryString(text);
+            int[] state = initialDecipherStep(cipher);
+            observer.onRound(0, observed(cipher), observed(cipher), observed(state));
+            for (int round = 1; round <= rounds; round++) {
+                sBoxInverse(state);
+                int substituted = observed(state);
+                int permuted = substituted;
+                if (round < rounds) {
+                    state = bitPermutation(state);
+                    permuted = observed(state);
+                    state = Helper.xorArrays(state, bitPermutation(roundKeys[rounds - round]));
+                } else {
+                    state = Helper.xorArrays(state, roundKeys[0]);
+                }
+                observer.onRound(round, substituted, permuted, observed(state));
+            }
+            return Helper.intArrayToString(Helper.fourBitArraytoBinaryArray(state));
+        }
+
+        // Packs the 4-bit values of a string path state for the observer, first value in the highest nibble
+        private static int observed(int[] state) {
+            if (state.length > 8) {
+                throw new IllegalArgumentException("Round observers support blocks up to 32 bits");
+            }
+            return pack(state);
         }
 
         // For each round it runs the message through the sBox, permutes the message with the bitPermutation array
@@ -292,16 +625,21 @@ public class CombinedSPN {
          * @return Decrypted binary string containing the original message
          */
         public String ctr(String[] ciphers) {
+            long start = SPNMetrics.ENABLED ? System.nanoTime() : 0;
             StringBuilder text = new StringBuilder();
             for (int i = 1; i < ciphers.length; i++) {
                 // Generate counter value by adding (i-1) to the IV (ciphers[0])
                 String yi = Helper.binaryStringAddNumber(ciphers[0], i - 1);
-                // Encrypt the counter value
-                String result = encrypt(yi);
+                // Encrypt the counter value, counted once as part of this CTR call
+                String result = encryptString(yi);
                 // XOR the encrypted counter with the cipher block to get plaintext
                 String res = Helper.xorBinaryStrings(result, ciphers[i]);
                 text.append(res);
             }
+            if (SPNMetrics.ENABLED) {
+                SPNMetrics.record(SPNMetrics.Operation.CTR, SPNMetrics.CipherMode.CTR, SPNMetrics.Mode.STRING,
+                    Math.max(ciphers.length - 1, 0), 0, System.nanoTime() - start);
+            }
             return text.toString();
         }
     }
@@ -398,6 +736,39 @@ public class CombinedSPN {
             return inv;
         }
 
+        /**
+         * Parses a 32-bit key into the eight 4-bit values used by the SPN
+         *
+         * Accepts either 32 binary digits or 8 hexadecimal digits, spaces and underscores are ignored
+         * (e.g. "0011 1010 1001 0100 1101 0110 0011 1111" or "3a94d63f").
+         *
+         * @param text The key in binary or hexadecimal notation
+         * @return Array of eight 4-bit values, most significant first
+         * @throws IllegalArgumentException if the key has the wrong format
+         */
+        public static int[] parseKey(String text) {
+            String digits = text.replaceAll("[\\s_]", "");
+            if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                digits = digits.substring(2);
+            }
+            int bitsPerDigit;
+            if (digits.length() == 32 && digits.matches("[01]+")) {
+                bitsPerDigit = 1;
+            } else if (digits.length() == 8 && digits.matches("[0-9a-fA-F]+")) {
+                bitsPerDigit = 4;
+            } else {
+                throw new IllegalArgumentException("Key must have 32 binary or 8 hexadecimal digits: " + text);
+            }
+            int radix = 1 << bitsPerDigit;
+            int[] key = new int[8];
+            for (int i = 0; i < digits.length(); i++) {
+                int value = Character.digit(digits.charAt(i), radix);
+                int bit = i * bitsPerDigit;
+                key[bit / 4] = (key[bit / 4] << bitsPerDigit) | value;
+            }
+            return key;
+        }
+
         public static String[] splitString(String message, int blockSize) {
             int len = message.length();
             // Use the provided blockSize parameter instead of hardcoding
@@ -420,22 +791,27 @@ public class CombinedSPN {
         }
 
         /**
-         * Convert a 16-bit binary string to an incremented binary string
+         * Convert a binary string to an incremented binary string of the same length
          *
          * @param binaryStr Original binary string
          * @param number Value to add to the binary string
-         * @return The incremented binary string
+         * @return The incremented binary string, modulo 2^length
          */
         public static String binaryStringAddNumber(String binaryStr, int number) {
-            // Convert the binary string to an integer
-            int num = Integer.parseInt(binaryStr, 2);
-
-            // Add the number and take modulo 2^16 to ensure 16-bit result
-            int result = (num + number) % 65536; // 2^16 = 65536
+            int length = binaryStr.length();
+            String binaryResult;
+            if (length < 63) {
+                // Add the number and take modulo 2^length to keep the block size
+                long num = Long.parseLong(binaryStr, 2);
+                long result = (num + number) & ((1L << length) - 1);
+                binaryResult = Long.toBinaryString(result);
+            } else {
+                BigInteger modulus = BigInteger.ONE.shiftLeft(length);
+                binaryResult = new BigInteger(binaryStr, 2).add(BigInteger.valueOf(number)).mod(modulus).toString(2);
+            }
 
-            // Convert back to binary and ensure proper length
-            String binaryResult = Integer.toBinaryString(result);
-            return padLeft(binaryResult, binaryStr.length());
+            // Ensure proper length
+            return padLeft(binaryResult, length);
         }
 
         /**
@@ -479,28 +855,13 @@ public class CombinedSPN {
          * The method processes the binary string according to the assignment specifications:
          * 1. Finds the last occurrence of '1' (the padding marker)
          * 2. Removes everything after this marker (the padding zeros)
-         * 3. Converts each 8-bit chunk to its corresponding ASCII character
+         * 3. Decodes the 8-bit chunks as UTF-8 (see SPNTextCodec)
          *
          * @param binary The binary string to convert
          * @return The decoded text message
          */
         public static String binaryToText(String binary) {
-            // Find the padding marker (last '1') and remove padding
-            int lastOne = binary.lastIndexOf('1');
-            if (lastOne != -1) {
-                binary = binary.substring(0, lastOne);
-            }
-
-            StringBuilder text = new StringBuilder();
-            // Process the binary string in 8-bit chunks (one byte per character)
-            for (int i = 0; i + 8 <= binary.length(); i += 8) {
-                String byteStr = binary.substring(i, i + 8);
-                // Convert each 8-bit binary string to its decimal value
-                int charCode = Integer.parseInt(byteStr, 2);
-                // Convert the decimal value to its ASCII character
-                text.append((char) charCode);
-            }
-            return text.toString();
+            return new SPNTextCodec().binaryToText(binary);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Authenticated encryption: CTR mode with a polynomial MAC over the ciphertext
+ *
+ * Encrypt-then-MAC in the style of GCM, reduced to 16-bit blocks:
+ * - block i of the message is XORed with E(iv + i), like SPNBlockCipher.ctrXor
+ * - the ciphertext blocks c1..cn and two blocks with the 32-bit byte length are hashed as the
+ *   polynomial c1*H^(n+2) + ... + cn*H^3 + len*H^2 + ... in GF(2^16)
+ * - tag = hash XOR M(iv)
+ *
+ * With 16-bit blocks the CTR counters of all IVs cover every input of E, so no input of E is
+ * left for H and the tag mask. Both come from a separate MAC key instead: SHA-256 of a label
+ * and the cipher key gives the 32-bit key of the mask cipher M and the (non-zero) hash key H.
+ * Keystream blocks therefore never reveal H or a tag mask.
+ *
+ * Encryption, decryption and the MAC are computed in the same loop, so the data is read only
+ * once. Since the hash is a polynomial, the hashes of independent chunks can be merged:
+ * hash(A || B) = hash(A) * H^|B| + hash(B). Large ranges are therefore split into chunks that
+ * are encrypted and hashed in parallel.
+ *
+ * The tag has only 16 bits and the counter space only 2^16 blocks per IV, like the cipher
+ * itself this is meant for teaching, not for protecting real data.
+ */
+public class SPNAuthenticatedCipher {
+    /** Length of the tag appended to a message */
+    public static final int TAG_LENGTH = 2;
+
+    // Field polynomial x^16 + x^12 + x^3 + x + 1, x is a generator of the multiplicative group
+    private static final int POLYNOMIAL = 0x1100B;
+    private static final int ORDER = 0xFFFF;
+    private static final char[] EXP = new char[2 * ORDER];
+    private static final char[] LOG = new char[1 << 16];
+
+    static {
+        int value = 1;
+        for (int i = 0; i < ORDER; i++) {
+            EXP[i] = (char) value;
+            EXP[i + ORDER] = (char) value;
+            LOG[value] = (char) i;
+            value <<= 1;
+            if ((value & 0x10000) != 0) {
+                value ^= POLYNOMIAL;
+            }
+        }
+    }
+
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+    private static final int CHUNK_BYTES = 1 << 14;
+
+    private static final byte[] MAC_LABEL = "SPN-MAC".getBytes(StandardCharsets.US_ASCII);
+
+    private final SPNBlockCipher cipher;
+    private final SPNBlockCipher maskCipher;
+    private final int hashKey;
+
+    public SPNAuthenticatedCipher(SPNExpandedKey cipher) {
+        this.cipher = cipher;
+        byte[] macKey = deriveMacKey(cipher.getKey());
+        this.maskCipher = new SPNExpandedKey(
+            (macKey[0] & 0xFF) << 24 | (macKey[1] & 0xFF) << 16 | (macKey[2] & 0xFF) << 8 | (macKey[3] & 0xFF), false);
+        // First non-zero 16-bit value after the mask key, H = 0 would make every tag equal the mask
+        int h = 0;
+        for (int i = 4; h == 0 && i < macKey.length; i += 2) {
+            h = (macKey[i] & 0xFF) << 8 | (macKey[i + 1] & 0xFF);
+        }
+        this.hashKey = h != 0 ? h : 1;
+    }
+
+    // SHA-256 of the label and the big endian cipher key
+    private static byte[] deriveMacKey(int key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(MAC_LABEL);
+            digest.update(new byte[]{(byte) (key >>> 24), (byte) (key >>> 16), (byte) (key >>> 8), (byte) key});
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JDK provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Pads and encrypts a message and appends the tag
+     *
+     * @param iv 16-bit IV, must not be reused with the same key
+     * @param plaintext The message, not modified
+     * @return Ciphertext followed by the tag
+     */
+    public byte[] encrypt(int iv, byte[] plaintext) {
+        // Padding: a '1' bit followed by '0' bits up to the next block boundary
+        int paddedLength = (plaintext.length + 2) & ~1;
+        byte[] message = new byte[paddedLength + TAG_LENGTH];
+        System.arraycopy(plaintext, 0, message, 0, plaintext.length);
+        message[plaintext.length] = (byte) 0x80;
+        Stream stream = encryptor(iv);
+        stream.update(message, 0, paddedLength);
+        int tag = stream.tag();
+        message[paddedLength] = (byte) (tag >>> 8);
+        message[paddedLength + 1] = (byte) tag;
+        return message;
+    }
+
+    /**
+     * Checks the tag, decrypts the message and removes the padding
+     *
+     * Decryption and tag computation run in the same pass into a separate buffer. The plaintext
+     * is only returned if the tag matches, otherwise the buffer is cleared.
+     *
+     * @param iv The IV used for encryption
+     * @param message Ciphertext followed by the tag, not modified
+     * @throws IllegalArgumentException if the tag does not match (wrong key, IV or damaged message)
+     */
+    public byte[] decrypt(int iv, byte[] message) {
+        int length = message.length - TAG_LENGTH;
+        if (length < 2 || (length & 1) != 0) {
+            throw new IllegalArgumentException("Ciphertext length is not a multiple of the block size");
+        }
+        byte[] data = Arrays.copyOf(message, length);
+        Stream stream = decryptor(iv);
+        stream.update(data, 0, length);
+        int expected = ((message[length] & 0xFF) << 8) | (message[length + 1] & 0xFF);
+        if (!stream.verify(expected)) {
+            Arrays.fill(data, (byte) 0);
+            throw new IllegalArgumentException("Authentication failed, wrong key or damaged message");
+        }
+        int end = length;
+        if ((data[end - 1] & 0xFF) == 0x80) {
+            end -= 1;
+        } else if ((data[end - 2] & 0xFF) == 0x80 && data[end - 1] == 0) {
+            end -= 2;
+        } else {
+            throw new IllegalArgumentException("Invalid padding");
+        }
+        return Arrays.copyOf(data, end);
+    }
+
+    /**
+     * Starts a streaming encryption, the tag is available after the last update
+     */
+    public Stream encryptor(int iv) {
+        return new Stream(iv, true);
+    }
+
+    /**
+     * Starts a streaming decryption
+     *
+     * The plaintext returned by update is not authenticated until verify returned true. Callers
+     * must not pass it on before, e.g. write it to a temporary file that is only moved into
+     * place after a successful verification.
+     */
+    public Stream decryptor(int iv) {
+        return new Stream(iv, false);
+    }
+
+    /**
+     * Encryption or decryption of a message that arrives in parts of whole blocks
+     *
+     * Not thread safe, but a single large update uses several threads internally.
+     */
+    public final class Stream {
+        private final int iv;
+        private final boolean encrypt;
+        private long blocks;
+        private int hash;
+        private boolean finished;
+
+        private Stream(int iv, boolean encrypt) {
+            if (iv < 0 || iv > 0xFFFF) {
+                throw new IllegalArgumentException("IV must be a 16-bit value");
+            }
+            this.iv = iv;
+            this.encrypt = encrypt;
+        }
+
+        /**
+         * Encrypts or decrypts the next part in place and adds the ciphertext to the MAC
+         *
+         * @param len Number of bytes, must be even
+         */
+        public void update(byte[] data, int off, int len) {
+            if (finished) {
+                throw new IllegalStateException("Tag was already computed");
+            }
+            if ((len & 1) != 0) {
+                throw new IllegalArgumentException("Length must be a multiple of the block size");
+            }
+            if (blocks + len / 2 > SPNBlockCipher.MAX_CTR_BLOCKS) {
+                throw new IllegalArgumentException("Message exceeds the counter space of one IV");
+            }
+            if (len < PARALLEL_THRESHOLD) {
+                hash = merge(hash, process(data, off, off + len, blocks), len / 2);
+            } else {
+                int chunks = (len + CHUNK_BYTES - 1) / CHUNK_BYTES;
+                int[] hashes = new int[chunks];
+                long first = blocks;
+                IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                    int from = off + chunk * CHUNK_BYTES;
+                    int to = Math.min(from + CHUNK_BYTES, off + len);
+                    hashes[chunk] = process(data, from, to, first + chunk * (CHUNK_BYTES / 2));
+                });
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int chunkBlocks = Math.min(CHUNK_BYTES, len - chunk * CHUNK_BYTES) / 2;
+                    hash = merge(hash, hashes[chunk], chunkBlocks);
+                }
+            }
+            blocks += len / 2;
+        }
+
+        /**
+         * Finishes the message and returns its tag
+         */
+        public int tag() {
+            if (!finished) {
+                long bytes = 2 * blocks;
+                hash = multiply(hash ^ (int) ((bytes >>> 16) & 0xFFFF), hashKey);
+                hash = multiply(hash ^ (int) (bytes & 0xFFFF), hashKey);
+                finished = true;
+            }
+            return hash ^ maskCipher.encryptBlock(iv);
+        }
+
+        /**
+         * Finishes the message and compares its tag with the expected one
+         */
+        public boolean verify(int expectedTag) {
+            return ((tag() ^ expectedTag) & 0xFFFF) == 0;
+        }
+
+        // CTR transformation and hash of one range, firstBlock is the block index within the message
+        private int process(byte[] data, int from, int to, long firstBlock) {
+            int counter = (int) ((iv + firstBlock) & 0xFFFF);
+            int h = 0;
+            for (int i = from; i < to; i += 2) {
+                int keystream = cipher.encryptBlock(counter);
+                int block = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                int ciphertext = encrypt ? block ^ keystream : block;
+                h = multiply(h ^ ciphertext, hashKey);
+                int result = block ^ keystream;
+                data[i] = (byte) (result >>> 8);
+                data[i + 1] = (byte) result;
+                counter = (counter + 1) & 0xFFFF;
+            }
+            return h;
+        }
+
+        // hash(A || B) = hash(A) * H^|B| + hash(B)
+        private int merge(int hashA, int hashB, int blocksB) {
+            return multiply(hashA, power(hashKey, blocksB)) ^ hashB;
+        }
+    }
+
+    static int multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    static int power(int a, long exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(int) (LOG[a] * exponent % ORDER)];
+    }
+}
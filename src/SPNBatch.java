@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool to encrypt or decrypt many files concurrently
+ *
+ * Every file is processed on its own virtual thread. Since the work of a single file is
+ * dominated by waiting for the disk, a semaphore limits how many files are open at the same
+ * time instead of limiting the number of threads.
+ *
+ * Usage: java CombinedSPN (encrypt|decrypt) [options] input...
+ *
+ * Inputs are files, directories (searched recursively) or glob patterns such as "logs/*.txt".
+ * Encrypted files get the extension ".spn" (see SPNFileCipher for the container format).
+ *
+ * All files of a run share the 2^16 counters of the key. By default they get consecutive
+ * counter ranges, and a run whose files need more blocks fails instead of wrapping around:
+ * without compression before the first file is written, with compression at the first file
+ * whose compressed size no longer fits. Every range is registered with
+ * SPNNonceService.shared(), so no policy reuses counters within the process.
+ */
+public class SPNBatch {
+    private static final String USAGE = String.join(System.lineSeparator(),
+        "Usage: java CombinedSPN (encrypt|decrypt) [options] input...",
+        "",
+        "Inputs are files, directories (recursive) or glob patterns, e.g. \"data/**/*.csv\".",
+        "",
+        "Options:",
+        "  --key <key>          32 binary or 8 hex digits (default: key of the assignment)",
+        "  --iv <policy>        sequential[:start] (default), random or fixed:<value>",
+        "                       values are 16 binary digits, 0x-prefixed hex or decimal;",
+        "                       the files of a run share the 65536 blocks of the key",
+        "                       and a fixed IV only encrypts a single file",
+        "  --out <dir>          write the results into this directory instead of next to the inputs",
+        "                       (the file names of the inputs must be unique)",
+        "  --io-limit <n>       maximum number of files processed at the same time (default 64)",
+        "  --buffer-size <n>    buffer size per file in bytes (default 65536)",
+        "  --compress           deflate every buffer before encryption (decryption detects it)",
+        "  --quiet              only print the summary");
+
+    private static final Path CURRENT_DIRECTORY = Paths.get(".");
+
+    private enum Mode { ENCRYPT, DECRYPT }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the tool and returns the exit code: 0 on success, 1 if a file failed, 2 for usage errors
+     */
+    public static int run(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        List<Path> files;
+        try {
+            files = collectFiles(options.inputs, options.mode);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 2;
+        }
+        if (files.isEmpty()) {
+            System.err.println("Error: no input files found");
+            return 2;
+        }
+        if (options.outputDirectory != null) {
+            String collision = findCollision(files);
+            if (collision != null) {
+                System.err.println("Error: " + collision);
+                return 2;
+            }
+        }
+        if (options.mode == Mode.ENCRYPT) {
+            String error;
+            try {
+                error = checkCounters(files, options);
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            if (error != null) {
+                System.err.println("Error: " + error);
+                return 2;
+            }
+        }
+
+        SPNFileCipher fileCipher = new SPNFileCipher(
+            new CombinedSPN.SPN(4, 4, 4, options.key), options.bufferSize, 2);
+        SPNNonceService nonces = SPNNonceService.shared();
+        String keyId = nonces.keyId(options.key);
+        Semaphore ioPermits = new Semaphore(options.ioLimit);
+        LongAdder totalBytes = new LongAdder();
+        AtomicInteger failures = new AtomicInteger();
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : files) {
+                executor.submit(() -> {
+                    try {
+                        ioPermits.acquire();
+                        try {
+                            long bytes = processFile(fileCipher, file, options, blocks -> options.nextIv(nonces, keyId, blocks));
+                            totalBytes.add(bytes);
+                        } finally {
+                            ioPermits.release();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failures.incrementAndGet();
+                        System.err.println("FAILED " + file + ": " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                        System.err.println("FAILED " + file + ": interrupted");
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        int succeeded = files.size() - failures.get();
+        System.out.printf("%d of %d files %s, %s in %.3f s (%s/s)%n",
+            succeeded, files.size(), options.mode == Mode.ENCRYPT ? "encrypted" : "decrypted",
+            formatBytes(totalBytes.sum()), nanos / 1e9, formatBytes(totalBytes.sum() / Math.max(nanos / 1e9, 1e-9)));
+        if (SPNMetrics.ENABLED) {
+            System.out.print(SPNMetrics.export());
+        }
+        return failures.get() == 0 ? 0 : 1;
+    }
+
+    // Encrypts or decrypts a single file and returns the number of input bytes
+    private static long processFile(SPNFileCipher fileCipher, Path file, Options options, IntUnaryOperator ivSource)
+        throws IOException {
+        long size = Files.size(file);
+        long start = System.nanoTime();
+        // With an output directory the target name is derived as if the input was located there
+        Path base = options.outputDirectory == null ? file : options.outputDirectory.resolve(file.getFileName());
+        Path target;
+        if (options.mode == Mode.ENCRYPT) {
+            target = SPNFileCipher.encryptedPath(base);
+            fileCipher.encrypt(file, target, ivSource, options.compress, null);
+        } else {
+            target = SPNFileCipher.decryptedPath(base);
+            fileCipher.decrypt(file, target, null);
+        }
+        long nanos = System.nanoTime() - start;
+        if (!options.quiet) {
+            System.out.printf("%s -> %s (%s in %.2f ms, %s/s)%n", file, target,
+                formatBytes(size), nanos / 1e6, formatBytes(size / Math.max(nanos / 1e9, 1e-9)));
+        }
+        return size;
+    }
+
+    // Counter ranges that can be checked before the run, returns a description of the problem
+    private static String checkCounters(List<Path> files, Options options) throws IOException {
+        if (options.ivPolicy == IvPolicy.FIXED && files.size() > 1) {
+            return "a fixed IV would reuse the same keystream for every file, it only encrypts a single file";
+        }
+        if (options.compress) {
+            // Compressed sizes are only known while encrypting, see Options.nextIv
+            return null;
+        }
+        long blocks = 0;
+        for (Path file : files) {
+            blocks += Files.size(file) / 2 + 1;
+        }
+        if (blocks > SPNBlockCipher.MAX_CTR_BLOCKS) {
+            return "the files need " + blocks + " blocks, but a key has only " + SPNBlockCipher.MAX_CTR_BLOCKS
+                + " counters; split them over several runs with different keys or use --compress";
+        }
+        return null;
+    }
+
+    // With an output directory only the file names are kept, two inputs with the same name would
+    // write (and truncate) the same target concurrently. Returns a description of the first such pair.
+    private static String findCollision(List<Path> files) {
+        Map<Path, Path> byName = new HashMap<>();
+        for (Path file : files) {
+            Path other = byName.putIfAbsent(file.getFileName(), file);
+            if (other != null) {
+                return other + " and " + file + " have the same name and would be written to the same file in the output directory";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Expands the inputs into a list of regular files
+     *
+     * Directories are searched recursively. For encryption existing containers are skipped,
+     * for decryption only containers are taken from directories and globs.
+     */
+    static List<Path> collectFiles(List<String> inputs, Mode mode) throws IOException {
+        Set<Path> files = new LinkedHashSet<>();
+        for (String input : inputs) {
+            if (isGlob(input)) {
+                Path base = globBase(input);
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+                try (Stream<Path> walk = Files.walk(base)) {
+                    walk.filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(base == CURRENT_DIRECTORY ? base.relativize(path) : path))
+                        .filter(path -> selectedFor(path, mode))
+                        .sorted()
+                        .forEach(files::add);
+                }
+            } else {
+                Path path = Paths.get(input);
+                if (Files.isDirectory(path)) {
+                    try (Stream<Path> walk = Files.walk(path)) {
+                        walk.filter(Files::isRegularFile)
+                            .filter(file -> selectedFor(file, mode))
+                            .sorted()
+                            .forEach(files::add);
+                    }
+                } else if (Files.isRegularFile(path)) {
+                    files.add(path);
+                } else {
+                    throw new IOException("Input not found: " + input);
+                }
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean selectedFor(Path file, Mode mode) {
+        boolean container = file.getFileName().toString().endsWith(SPNFileCipher.EXTENSION);
+        return mode == Mode.DECRYPT ? container : !container;
+    }
+
+    private static boolean isGlob(String input) {
+        return input.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    // The directory part of a glob before the first segment that contains a pattern
+    private static Path globBase(String glob) {
+        String prefix = glob.substring(0, firstGlobChar(glob));
+        int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(java.io.File.separatorChar));
+        if (separator < 0) {
+            return CURRENT_DIRECTORY;
+        }
+        return Paths.get(separator == 0 ? prefix.substring(0, 1) : prefix.substring(0, separator));
+    }
+
+    private static int firstGlobChar(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return glob.length();
+    }
+
+    private static String formatBytes(double bytes) {
+        String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", bytes, units[unit]);
+    }
+
+    private enum IvPolicy { RANDOM, SEQUENTIAL, FIXED }
+
+    /**
+     * Parsed command line options
+     */
+    private static final class Options {
+        Mode mode;
+        int[] key = CombinedSPN.Helper.parseKey("0011 1010 1001 0100 1101 0110 0011 1111");
+        IvPolicy ivPolicy = IvPolicy.SEQUENTIAL;
+        Path outputDirectory;
+        int ioLimit = 64;
+        int bufferSize = 1 << 16;
+        boolean compress;
+        boolean quiet;
+        final List<String> inputs = new ArrayList<>();
+
+        // Counters handed out by the sequential policy, relative to its start
+        private final AtomicLong sequentialBlocks = new AtomicLong();
+        private int sequentialStart = new SecureRandom().nextInt(1 << 16);
+        private int fixedIv;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            if (args.length == 0) {
+                throw new IllegalArgumentException("missing mode");
+            }
+            switch (args[0]) {
+                case "encrypt" -> options.mode = Mode.ENCRYPT;
+                case "decrypt" -> options.mode = Mode.DECRYPT;
+                default -> throw new IllegalArgumentException("unknown mode " + args[0]);
+            }
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--key" -> options.key = CombinedSPN.Helper.parseKey(value(args, ++i, arg));
+                    case "--iv" -> options.parseIvPolicy(value(args, ++i, arg));
+                    case "--out" -> options.outputDirectory = Paths.get(value(args, ++i, arg));
+                    case "--io-limit" -> options.ioLimit = positive(value(args, ++i, arg), arg);
+                    case "--buffer-size" -> options.bufferSize = positive(value(args, ++i, arg), arg) & ~1;
+                    case "--compress" -> options.compress = true;
+                    case "--quiet" -> options.quiet = true;
+                    default -> {
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("unknown option " + arg);
+                        }
+                        options.inputs.add(arg);
+                    }
+                }
+            }
+            if (options.inputs.isEmpty()) {
+                throw new IllegalArgumentException("no inputs given");
+            }
+            if (options.outputDirectory != null && !Files.isDirectory(options.outputDirectory)) {
+                throw new IllegalArgumentException("output directory does not exist: " + options.outputDirectory);
+            }
+            if (options.bufferSize < 2) {
+                throw new IllegalArgumentException("--buffer-size must be at least 2");
+            }
+            return options;
+        }
+
+        private void parseIvPolicy(String policy) {
+            if (policy.equals("random")) {
+                ivPolicy = IvPolicy.RANDOM;
+            } else if (policy.equals("sequential")) {
+                ivPolicy = IvPolicy.SEQUENTIAL;
+            } else if (policy.startsWith("sequential:")) {
+                ivPolicy = IvPolicy.SEQUENTIAL;
+                sequentialStart = parseBlock(policy.substring("sequential:".length()));
+            } else if (policy.startsWith("fixed:")) {
+                ivPolicy = IvPolicy.FIXED;
+                fixedIv = parseBlock(policy.substring("fixed:".length()));
+            } else {
+                throw new IllegalArgumentException("unknown IV policy " + policy);
+            }
+        }
+
+        /**
+         * Returns the IV for a container of the given number of blocks and registers its counters
+         *
+         * The sequential policy hands out consecutive counter ranges from its start and fails
+         * as soon as the files of the run would need more than the 2^16 counters of the key.
+         *
+         * @throws SPNNonceService.CounterReuseException if the counters are in use or exhausted
+         */
+        int nextIv(SPNNonceService nonces, String keyId, int blocks) {
+            return switch (ivPolicy) {
+                case RANDOM -> nonces.nextIv(keyId, blocks);
+                case FIXED -> {
+                    nonces.register(keyId, fixedIv, blocks);
+                    yield fixedIv;
+                }
+                case SEQUENTIAL -> {
+                    long first = sequentialBlocks.getAndAdd(blocks);
+                    if (first + blocks > SPNBlockCipher.MAX_CTR_BLOCKS) {
+                        throw new SPNNonceService.CounterReuseException("The files of this run need more than "
+                            + SPNBlockCipher.MAX_CTR_BLOCKS + " blocks, the counters of the key would repeat");
+                    }
+                    int iv = (int) ((sequentialStart + first) & 0xFFFF);
+                    nonces.register(keyId, iv, blocks);
+                    yield iv;
+                }
+            };
+        }
+
+        private static int parseBlock(String text) {
+            int value;
+            if (text.length() == 16 && text.matches("[01]+")) {
+                value = Integer.parseInt(text, 2);
+            } else if (text.startsWith("0x") || text.startsWith("0X")) {
+                value = Integer.parseInt(text.substring(2), 16);
+            } else {
+                value = Integer.parseInt(text);
+            }
+            if (value < 0 || value > 0xFFFF) {
+                throw new IllegalArgumentException("IV must be a 16-bit value: " + text);
+            }
+            return value;
+        }
+
+        private static String value(String[] args, int index, String option) {
+            if (index >= args.length) {
+                throw new IllegalArgumentException("missing value for " + option);
+            }
+            return args[index];
+        }
+
+        private static int positive(String text, String option) {
+            try {
+                int value = Integer.parseInt(text);
+                if (value > 0) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException(option + " needs a positive number");
+        }
+    }
+}
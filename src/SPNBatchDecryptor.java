@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Decrypts many short CTR messages of a few keys in one call
+ *
+ * Messages use the format of CombinedSPN.main: a binary string whose first 16-bit block is the
+ * IV, followed by the ciphertext blocks. The result of a message is the decrypted binary
+ * string including the padding, exactly like SPN.ctr returns it.
+ *
+ * The batch is grouped by key first, so the cipher of every key (round keys or codebooks) is
+ * looked up or built once per batch instead of once per message. The messages are then
+ * decrypted in parallel, directly from the characters of the binary string with the block
+ * cipher, without creating an SPN or intermediate strings per block. The results keep the
+ * order of the input.
+ */
+public class SPNBatchDecryptor {
+    /**
+     * One message of a batch
+     *
+     * @param keyId ID of the key the message was encrypted with
+     * @param message IV block followed by the ciphertext blocks as binary string
+     */
+    public record Item(String keyId, String message) {
+    }
+
+    private final Function<String, ? extends SPNBlockCipher> keys;
+
+    /**
+     * @param keys Returns the cipher of a key ID, called once per key and batch. Must be thread
+     *             safe, e.g. SPNKeyring::get or a lookup in an SPNCodebookStore.
+     */
+    public SPNBatchDecryptor(Function<String, ? extends SPNBlockCipher> keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Uses the expanded keys (with codebooks if enabled) of a keyring
+     */
+    public SPNBatchDecryptor(SPNKeyring keyring) {
+        this(keyring::get);
+    }
+
+    /**
+     * Decrypts all messages of a batch
+     *
+     * @param items The messages, in any order of keys
+     * @return The decrypted binary strings in the order of the items
+     * @throws IllegalArgumentException if a key is unknown or a message is not a sequence of 16-bit blocks
+     */
+    public List<String> decrypt(List<Item> items) {
+        int count = items.size();
+
+        // Group the item indices by key and resolve every key once
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            groups.computeIfAbsent(items.get(i).keyId(), id -> new ArrayList<>()).add(i);
+        }
+        SPNBlockCipher[] ciphers = new SPNBlockCipher[count];
+        groups.entrySet().parallelStream().forEach(group -> {
+            SPNBlockCipher cipher = keys.apply(group.getKey());
+            if (cipher == null) {
+                throw new IllegalArgumentException("Unknown key ID: " + group.getKey());
+            }
+            for (int index : group.getValue()) {
+                ciphers[index] = cipher;
+            }
+        });
+
+        String[] results = new String[count];
+        IntStream.range(0, count).parallel()
+            .forEach(i -> results[i] = decrypt(ciphers[i], items.get(i).message(), i));
+        return List.of(results);
+    }
+
+    // CTR decryption of one message, counter i is IV + i like in SPN.ctr
+    private static String decrypt(SPNBlockCipher cipher, String message, int index) {
+        int length = message.length();
+        if (length < 16 || length % 16 != 0) {
+            throw new IllegalArgumentException("Message " + index + " is not a sequence of 16-bit blocks");
+        }
+        int counter = parseBlock(message, 0, index);
+        char[] plain = new char[length - 16];
+        for (int offset = 16; offset < length; offset += 16) {
+            int block = parseBlock(message, offset, index) ^ cipher.encryptBlock(counter);
+            for (int bit = 0; bit < 16; bit++) {
+                plain[offset - 16 + bit] = (char) ('0' + ((block >>> (15 - bit)) & 1));
+            }
+            counter = (counter + 1) & 0xFFFF;
+        }
+        return new String(plain);
+    }
+
+    private static int parseBlock(String message, int offset, int index) {
+        int block = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            char c = message.charAt(i);
+            if (c != '0' && c != '1') {
+                throw new IllegalArgumentException("Message " + index + " contains a non-binary character");
+            }
+            block = (block << 1) | (c - '0');
+        }
+        return block;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Block level access to a 16-bit SPN cipher
+ *
+ * Blocks are passed as int values in the range 0..65535. The most significant bit of the
+ * block corresponds to the first character of the binary string representation used by
+ * SPN.encrypt and SPN.decrypt, so both views produce the same results.
+ */
+public interface SPNBlockCipher {
+    /**
+     * Largest number of blocks of a CTR message: the counter has 16 bits, so block 65536 would
+     * use the keystream of block 0 again
+     */
+    long MAX_CTR_BLOCKS = 1 << 16;
+
+    /**
+     * Encrypts a single 16-bit block
+     *
+     * @param block Plaintext block (0..65535)
+     * @return Encrypted block (0..65535)
+     */
+    int encryptBlock(int block);
+
+    /**
+     * Decrypts a single 16-bit block
+     *
+     * @param block Encrypted block (0..65535)
+     * @return Decrypted block (0..65535)
+     */
+    int decryptBlock(int block);
+
+    /**
+     * Applies the CTR keystream to a byte range in place
+     *
+     * Every two bytes form one block (big endian). Block i of the range is XORed with the
+     * encrypted counter iv + firstBlock + i (modulo 2^16), exactly like SPN.ctr does it for
+     * binary strings. Since XOR is its own inverse the same call encrypts and decrypts.
+     * Ranges beyond block MAX_CTR_BLOCKS of the message are rejected instead of reusing the
+     * keystream.
+     *
+     * @param iv Initial counter value
+     * @param firstBlock Index of the first block of the range within the whole message
+     * @param data Data to transform
+     * @param off Offset of the first byte
+     * @param len Number of bytes, must be even
+     * @throws IllegalArgumentException if the length is odd or the range ends after block MAX_CTR_BLOCKS
+     */
+    default void ctrXor(int iv, long firstBlock, byte[] data, int off, int len) {
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Length must be a multiple of the block size");
+        }
+        if (firstBlock < 0 || firstBlock + len / 2 > MAX_CTR_BLOCKS) {
+            throw new IllegalArgumentException("CTR messages are limited to " + MAX_CTR_BLOCKS
+                + " blocks (" + MAX_CTR_BLOCKS * 2 / 1024 + " KiB), the counter would repeat");
+        }
+        long start = SPNMetrics.ENABLED ? System.nanoTime() : 0;
+        SPNEvents.CtrBatch event = SPNEvents.begin(SPNEvents.CtrBatch::new);
+        int counter = (int) ((iv + firstBlock) & 0xFFFF);
+        for (int i = off; i < off + len; i += 2) {
+            int keystream = encryptBlock(counter);
+            data[i] ^= (byte) (keystream >>> 8);
+            data[i + 1] ^= (byte) keystream;
+            counter = (counter + 1) & 0xFFFF;
+        }
+        if (SPNMetrics.ENABLED) {
+            SPNMetrics.record(SPNMetrics.Operation.CTR, SPNMetrics.CipherMode.CTR, SPNMetrics.Mode.BYTES,
+                len / 2, len, System.nanoTime() - start);
+        }
+        if (SPNEvents.end(event)) {
+            event.blocks = len / 2;
+            event.bytes = len;
+            event.engine = getClass().getSimpleName();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates a specialized cipher class for a single key
+ *
+ * SPN.encryptBlock loops over the rounds and reads the round keys from an array. For a hot
+ * key this compiler writes the bytecode of a class whose encryptBlock and decryptBlock are
+ * fully unrolled, with the round keys as int constants. The class is defined as hidden class
+ * and gets the lookup tables as class data, so the JIT sees straight-line code over one
+ * constant table.
+ *
+ * Generated ciphers are cached per round keys and tables (LRU). A hidden class is unloaded as
+ * soon as its instance is no longer referenced, so evicted keys do not leak classes. If the
+ * SPN has no block operations (n or m not 4) or the class cannot be defined, compile returns
+ * the SPN itself. SPNKeyring compiles the keys it caches without codebooks.
+ */
+public final class SPNCipherCompiler {
+    // Table offsets within SPN.lookupTables()
+    private static final int SP_ENC = 0;
+    private static final int S_ENC = 64;
+    private static final int SP_DEC = 128;
+    private static final int S_DEC = 192;
+
+    private static final String CLASS_NAME = "SPNCompiledCipher";
+    private static final String TABLES_FIELD = "T";
+
+    private final int maxEntries;
+    private final Map<CacheKey, SPNBlockCipher> cache;
+    private final LongAdder compiled = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * @param maxEntries Maximum number of cached ciphers
+     */
+    public SPNCipherCompiler(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one cipher");
+        }
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, SPNBlockCipher> eldest) {
+                return size() > SPNCipherCompiler.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the specialized cipher for the key and round count of an SPN
+     *
+     * @return The generated cipher, or the SPN itself if no class could be generated
+     */
+    public SPNBlockCipher compile(CombinedSPN.SPN spn) {
+        CacheKey key;
+        try {
+            key = new CacheKey(spn.packedRoundKeys(), spn.lookupTables());
+        } catch (IllegalStateException e) {
+            // No block operations for this SPN, the string path is all there is
+            fallbacks.increment();
+            return spn;
+        }
+        synchronized (cache) {
+            SPNBlockCipher cipher = cache.get(key);
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+        SPNBlockCipher cipher;
+        try {
+            cipher = generate(spn);
+            compiled.increment();
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+            fallbacks.increment();
+            return spn;
+        }
+        synchronized (cache) {
+            SPNBlockCipher existing = cache.putIfAbsent(key, cipher);
+            return existing != null ? existing : cipher;
+        }
+    }
+
+    public long compiledCount() {
+        return compiled.sum();
+    }
+
+    public long fallbackCount() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Generates and defines a new cipher class for an SPN, without cache
+     *
+     * @throws IllegalStateException if the SPN has no block operations or too many rounds for one method
+     */
+    public static SPNBlockCipher generate(CombinedSPN.SPN spn) throws ReflectiveOperationException {
+        byte[] bytes = classBytes(spn.packedRoundKeys(), spn.packedDecryptionKeys());
+        MethodHandles.Lookup lookup = MethodHandles.lookup()
+            .defineHiddenClassWithClassData(bytes, spn.lookupTables(), true);
+        return (SPNBlockCipher) lookup.lookupClass().getConstructor().newInstance();
+    }
+
+    // The generated class:
+    //
+    // public final class SPNCompiledCipher implements SPNBlockCipher {
+    //     private static final int[] T = MethodHandles.classData(lookup(), "_", int[].class);
+    //     public int encryptBlock(int block) { ... unrolled rounds ... }
+    //     public int decryptBlock(int block) { ... unrolled rounds ... }
+    // }
+    static byte[] classBytes(int[] encryptionKeys, int[] decryptionKeys) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int blockInterface = pool.classRef("SPNBlockCipher");
+        int tables = pool.fieldRef(CLASS_NAME, TABLES_FIELD, "[I");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int lookup = pool.methodRef("java/lang/invoke/MethodHandles", "lookup",
+            "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        int classData = pool.methodRef("java/lang/invoke/MethodHandles", "classData",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+        int defaultName = pool.string("_");
+        int intArray = pool.classRef("[I");
+
+        Code init = new Code(1, 1);
+        init.op(ALOAD_0).op(INVOKESPECIAL).u2(objectInit).op(RETURN);
+
+        Code clinit = new Code(3, 0);
+        clinit.op(INVOKESTATIC).u2(lookup).op(LDC_W).u2(defaultName).op(LDC_W).u2(intArray)
+            .op(INVOKESTATIC).u2(classData).op(CHECKCAST).u2(intArray).op(PUTSTATIC).u2(tables).op(RETURN);
+
+        Code encrypt = rounds(pool, tables, encryptionKeys, SP_ENC, S_ENC);
+        Code decrypt = rounds(pool, tables, decryptionKeys, SP_DEC, S_DEC);
+
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            // Fields and methods reference their names before the pool is written
+            int codeName = pool.utf8("Code");
+            int[] fieldNames = {pool.utf8(TABLES_FIELD), pool.utf8("[I")};
+            int[][] methodNames = {
+                {pool.utf8("<init>"), pool.utf8("()V")},
+                {pool.utf8("<clinit>"), pool.utf8("()V")},
+                {pool.utf8("encryptBlock"), pool.utf8("(I)I")},
+                {pool.utf8("decryptBlock"), pool.utf8("(I)I")},
+            };
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61); // Java 17 class file, no stack map frames needed without branches
+            pool.write(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(blockInterface);
+
+            out.writeShort(1);
+            out.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+            out.writeShort(fieldNames[0]);
+            out.writeShort(fieldNames[1]);
+            out.writeShort(0);
+
+            Code[] codes = {init, clinit, encrypt, decrypt};
+            int[] flags = {ACC_PUBLIC, ACC_STATIC, ACC_PUBLIC | ACC_FINAL, ACC_PUBLIC | ACC_FINAL};
+            out.writeShort(codes.length);
+            for (int i = 0; i < codes.length; i++) {
+                out.writeShort(flags[i]);
+                out.writeShort(methodNames[i][0]);
+                out.writeShort(methodNames[i][1]);
+                out.writeShort(1);
+                codes[i].write(out, codeName);
+            }
+            out.writeShort(0);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // state = block ^ k0; state = SP(state) ^ k1; ... ; return S(state) ^ kr
+    // Locals: 0 = this, 1 = state, 2 = tables
+    private static Code rounds(ConstantPool pool, int tables, int[] keys, int innerTable, int lastTable) {
+        int rounds = keys.length - 1;
+        Code code = new Code(4, 3);
+        code.op(GETSTATIC).u2(tables).op(ASTORE_2);
+        code.op(ILOAD_1).op(LDC_W).u2(pool.integer(keys[0])).op(IXOR).op(ISTORE_1);
+        for (int round = 1; round < rounds; round++) {
+            substitute(code, innerTable);
+            code.op(LDC_W).u2(pool.integer(keys[round])).op(IXOR).op(ISTORE_1);
+        }
+        substitute(code, lastTable);
+        code.op(LDC_W).u2(pool.integer(keys[rounds])).op(IXOR).op(IRETURN);
+        return code;
+    }
+
+    // Pushes T[base + (state >>> 12 & 15)] ^ T[base + 16 + (state >>> 8 & 15)] ^ ... like SPN.substitute
+    private static void substitute(Code code, int base) {
+        for (int position = 0; position < 4; position++) {
+            code.op(ALOAD_2).op(ILOAD_1);
+            int shift = 12 - 4 * position;
+            if (shift > 0) {
+                code.op(BIPUSH).u1(shift).op(IUSHR);
+            }
+            code.op(BIPUSH).u1(15).op(IAND);
+            int offset = base + 16 * position;
+            if (offset > 0) {
+                code.op(SIPUSH).u2(offset).op(IADD);
+            }
+            code.op(IALOAD);
+            if (position > 0) {
+                code.op(IXOR);
+            }
+        }
+    }
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_2 = 0x2C;
+    private static final int ASTORE_2 = 0x4D;
+    private static final int ILOAD_1 = 0x1B;
+    private static final int ISTORE_1 = 0x3C;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int IALOAD = 0x2E;
+    private static final int IADD = 0x60;
+    private static final int IUSHR = 0x7C;
+    private static final int IAND = 0x7E;
+    private static final int IXOR = 0x82;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int GETSTATIC = 0xB2;
+    private static final int PUTSTATIC = 0xB3;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int CHECKCAST = 0xC0;
+
+    // Bytecode of one method
+    private static final class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int maxStack;
+        private final int maxLocals;
+
+        Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        void write(DataOutputStream out, int codeName) throws IOException {
+            if (bytes.size() > 65535) {
+                throw new IllegalStateException("Too many rounds for a single method");
+            }
+            out.writeShort(codeName);
+            out.writeInt(12 + bytes.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+
+    // Constant pool with deduplicated entries
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> out.writeUTF(value));
+        }
+
+        int integer(int value) {
+            return entry("I" + value, 3, () -> out.writeInt(value));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 7, () -> out.writeShort(nameIndex));
+        }
+
+        int string(String value) {
+            int valueIndex = utf8(value);
+            return entry("S" + value, 8, () -> out.writeShort(valueIndex));
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + ":" + descriptor, 12, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry("M" + tag + owner + "." + name + ":" + descriptor, tag, () -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, int tag, Body body) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+    }
+
+    // Cache key, equal for SPNs with the same round keys and tables
+    private record CacheKey(int[] keys, int[] tables) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CacheKey key && Arrays.equals(keys, key.keys) && Arrays.equals(tables, key.tables);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(keys) + Arrays.hashCode(tables);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Headless entry point for scripts, optimized for start-up time
+ *
+ * Unlike SPNWithGUI this class never references javax.swing or java.awt, and unlike the demo
+ * in CombinedSPN it does not print the test vector before the work. Start-up is kept short by
+ * - the lookup tables of the default S-box being constants (SPNTables, generated by SPNTablesGenerator)
+ * - the self-test (SPNSelfTest) running lazily, only before the first real operation
+ * - an AppCDS archive of the loaded classes, created and used by scripts/spn-cli.sh
+ *
+ * Usage:
+ * java SPNCli (encrypt|decrypt) [options] input...   files, see SPNBatch for the options
+ * java SPNCli encrypt-text [--key key] text          prints IV and ciphertext as binary string
+ * java SPNCli decrypt-text [--key key] binary        prints the text
+ * java SPNCli hash file...                           SPNHash fingerprints
+ * java SPNCli self-test                              validates the cipher, exit code 1 on failure
+ * java SPNCli train directory                        runs all commands once on sample data in the
+ *                                                    directory, the training run of the AppCDS archive
+ */
+public final class SPNCli {
+    private static final String DEFAULT_KEY = "0011 1010 1001 0100 1101 0110 0011 1111";
+    private static final String USAGE = String.join(System.lineSeparator(),
+        "Usage: java SPNCli (encrypt|decrypt) [options] input...",
+        "       java SPNCli encrypt-text [--key <key>] <text>",
+        "       java SPNCli decrypt-text [--key <key>] <binary>",
+        "       java SPNCli hash <file>...",
+        "       java SPNCli self-test");
+
+    private SPNCli() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a command and returns the exit code: 0 on success, 1 on failure, 2 for usage errors
+     */
+    public static int run(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            return switch (args[0]) {
+                case "encrypt", "decrypt" -> {
+                    SPNSelfTest.ensurePassed();
+                    yield SPNBatch.run(args);
+                }
+                case "encrypt-text" -> encryptText(Arrays.copyOfRange(args, 1, args.length));
+                case "decrypt-text" -> decryptText(Arrays.copyOfRange(args, 1, args.length));
+                case "hash" -> hash(Arrays.copyOfRange(args, 1, args.length));
+                case "self-test" -> selfTest();
+                case "train" -> train(Arrays.copyOfRange(args, 1, args.length));
+                default -> {
+                    System.err.println("Error: unknown command " + args[0]);
+                    System.err.println(USAGE);
+                    yield 2;
+                }
+            };
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static int encryptText(String[] args) throws IOException {
+        String[] keyAndValue = keyAndValue(args);
+        long blocks = SPNTextCodec.encodedBlocks(keyAndValue[1]);
+        if (blocks > SPNBlockCipher.MAX_CTR_BLOCKS) {
+            throw new IllegalArgumentException("text too long, at most " + SPNBlockCipher.MAX_CTR_BLOCKS + " blocks");
+        }
+        CombinedSPN.SPN spn = cipher(keyAndValue[0]);
+        // Counters never used with the key in this process
+        SPNNonceService nonces = SPNNonceService.shared();
+        int iv = nonces.nextIv(nonces.keyId(CombinedSPN.Helper.parseKey(keyAndValue[0])), (int) blocks);
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        new SPNTextCodec().encrypt(keyAndValue[1], spn, iv, ciphertext::write);
+        System.out.println(binary(iv, ciphertext.toByteArray()));
+        return 0;
+    }
+
+    // IV and ciphertext as binary string, the input format of decrypt-text
+    private static String binary(int iv, byte[] ciphertext) {
+        StringBuilder binary = new StringBuilder(16 + ciphertext.length * 8);
+        binary.append(Integer.toBinaryString(iv | 0x10000).substring(1));
+        for (byte b : ciphertext) {
+            binary.append(Integer.toBinaryString((b & 0xFF) | 0x100).substring(1));
+        }
+        return binary.toString();
+    }
+
+    private static int decryptText(String[] args) {
+        String[] keyAndValue = keyAndValue(args);
+        String binary = keyAndValue[1].replaceAll("\\s", "");
+        if (binary.length() < 32 || binary.length() % 16 != 0 || !binary.matches("[01]+")) {
+            throw new IllegalArgumentException("Ciphertext must consist of the IV and at least one block of 16 binary digits");
+        }
+        CombinedSPN.SPN spn = cipher(keyAndValue[0]);
+        int iv = Integer.parseInt(binary.substring(0, 16), 2);
+        byte[] ciphertext = new byte[(binary.length() - 16) / 8];
+        for (int i = 0; i < ciphertext.length; i++) {
+            ciphertext[i] = (byte) Integer.parseInt(binary.substring(16 + i * 8, 24 + i * 8), 2);
+        }
+        System.out.println(new SPNTextCodec().decrypt(spn, iv, ciphertext, 0, ciphertext.length));
+        return 0;
+    }
+
+    private static int hash(String[] files) throws IOException {
+        if (files.length == 0) {
+            throw new IllegalArgumentException("no files given");
+        }
+        HexFormat hex = HexFormat.of();
+        for (String name : files) {
+            System.out.println(hex.formatHex(SPNHash.hash(Path.of(name))) + "  " + name);
+        }
+        return 0;
+    }
+
+    private static int selfTest() {
+        SPNSelfTest.Result result = SPNSelfTest.result();
+        System.out.println(result.passed() ? "PASSED" : "FAILED: " + result.failures());
+        return result.passed() ? 0 : 1;
+    }
+
+    // Loads the classes of every command, so the archive created at exit contains them
+    private static int train(String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("train needs a directory");
+        }
+        Path directory = Path.of(args[0]);
+        Path sample = Files.writeString(directory.resolve("sample.txt"), "Trainingsdaten für das AppCDS-Archiv\n");
+        int result = selfTest();
+        result |= encryptText(new String[]{"Training"});
+        // Decryption checks the padding, so it needs a real ciphertext
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        new SPNTextCodec().encrypt("Training", cipher(DEFAULT_KEY), 0, ciphertext::write);
+        result |= decryptText(new String[]{binary(0, ciphertext.toByteArray())});
+        // Random IVs come from the nonce service, so they never overlap the counters used above
+        result |= SPNBatch.run(new String[]{"encrypt", "--quiet", "--iv", "random", sample.toString()});
+        Files.move(sample, directory.resolve("original.txt"));
+        result |= SPNBatch.run(new String[]{"decrypt", "--quiet", SPNFileCipher.encryptedPath(sample).toString()});
+        result |= SPNBatch.run(new String[]{"encrypt", "--quiet", "--iv", "random", "--compress", sample.toString()});
+        result |= hash(new String[]{sample.toString()});
+        return result;
+    }
+
+    // Returns the key text (default key if not given) and the single remaining argument
+    private static String[] keyAndValue(String[] args) {
+        String key = DEFAULT_KEY;
+        String value = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--key")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for --key");
+                }
+                key = args[++i];
+            } else if (value == null) {
+                value = args[i];
+            } else {
+                throw new IllegalArgumentException("unexpected argument " + args[i]);
+            }
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("missing text");
+        }
+        return new String[]{key, value};
+    }
+
+    // Validated cipher for a key, the self-test runs before its first use
+    private static CombinedSPN.SPN cipher(String key) {
+        SPNSelfTest.ensurePassed();
+        return new CombinedSPN.SPN(4, 4, 4, CombinedSPN.Helper.parseKey(key));
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * File of precomputed codebooks for many keys, shared by memory mapping
+ *
+ * The file contains the complete encryption and decryption tables (2^16 entries each) of
+ * every stored key. Readers map it read-only, so the tables live in the page cache instead of
+ * the Java heap and all processes mapping the same file share one copy. Opening a store only
+ * maps the file, no table is computed or copied.
+ * An SPNKeyring given a store takes the codebooks of its keys from the mapping, e.g. in
+ * SPNService with java SPNService <port> <store>.
+ *
+ * File layout (big endian):
+ * - 4 bytes magic "SPNC", 4 bytes version, 4 bytes number of keys, 4 bytes reserved
+ * - the 32-bit keys in ascending order (4 bytes each)
+ * - padding up to the next multiple of 4096 bytes
+ * - per key in index order: encryption table, then decryption table (2 * 65536 * 2 bytes)
+ *
+ * Usage:
+ * java SPNCodebookStore build <file> <key>...   keys as 32 binary or 8 hex digits
+ * java SPNCodebookStore info <file>
+ */
+public final class SPNCodebookStore implements AutoCloseable {
+    private static final int MAGIC = 0x53504E43; // "SPNC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int PAGE_BYTES = 4096;
+    private static final int BLOCKS = 1 << 16;
+    private static final int TABLE_BYTES = 2 * BLOCKS;
+    private static final int ENTRY_BYTES = 2 * TABLE_BYTES;
+    // A single mapping is limited to 2 GB, so the tables are mapped in parts of this many keys
+    private static final int KEYS_PER_MAPPING = (1 << 30) / ENTRY_BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] mappings;
+    private final int count;
+
+    private SPNCodebookStore(FileChannel channel, MappedByteBuffer index, MappedByteBuffer[] mappings, int count) {
+        this.channel = channel;
+        this.index = index;
+        this.mappings = mappings;
+        this.count = count;
+    }
+
+    /**
+     * Writes a store with the codebooks of the given keys
+     *
+     * The tables are computed directly into a mapping of a temporary file, which replaces the
+     * target only when it is complete, so readers never see a partially written store.
+     *
+     * @param file The store to create or replace
+     * @param keys Packed 32-bit keys (see SPNExpandedKey.pack), duplicates are ignored
+     */
+    public static void write(Path file, int[] keys) throws IOException {
+        int[] sorted = IntStream.of(keys).sorted().distinct().toArray();
+        long dataOffset = dataOffset(sorted.length);
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+                header.putInt(MAGIC).putInt(VERSION).putInt(sorted.length).putInt(0);
+                for (int key : sorted) {
+                    header.putInt(key);
+                }
+                header.clear();
+                out.write(header, 0);
+
+                // Every key is computed into its own mapped region, the keys are independent
+                IntStream.range(0, sorted.length).parallel().forEach(i -> {
+                    SPNEvents.CodebookBuild event = SPNEvents.begin(SPNEvents.CodebookBuild::new);
+                    try {
+                        MappedByteBuffer region = out.map(FileChannel.MapMode.READ_WRITE,
+                            dataOffset + (long) i * ENTRY_BYTES, ENTRY_BYTES);
+                        CombinedSPN.SPN spn = new CombinedSPN.SPN(4, 4, 4, SPNExpandedKey.unpack(sorted[i]));
+                        for (int block = 0; block < BLOCKS; block++) {
+                            int encrypted = spn.encryptBlock(block);
+                            region.putShort(2 * block, (short) encrypted);
+                            region.putShort(TABLE_BYTES + 2 * encrypted, (short) block);
+                        }
+                        region.force();
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Writing codebook failed", e);
+                    }
+                    if (SPNEvents.end(event)) {
+                        event.target = "mapped";
+                        event.commit();
+                    }
+                });
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Maps a store read-only
+     */
+    public static SPNCodebookStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a codebook store: " + file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a codebook store: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported codebook store version " + version);
+            }
+            int count = header.getInt();
+            long dataOffset = dataOffset(count);
+            if (count < 0 || channel.size() != dataOffset + (long) count * ENTRY_BYTES) {
+                throw new IOException("Codebook store is truncated or damaged: " + file);
+            }
+
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 4L * count);
+            MappedByteBuffer[] mappings = new MappedByteBuffer[(count + KEYS_PER_MAPPING - 1) / KEYS_PER_MAPPING];
+            for (int i = 0; i < mappings.length; i++) {
+                int keys = Math.min(KEYS_PER_MAPPING, count - i * KEYS_PER_MAPPING);
+                mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + (long) i * KEYS_PER_MAPPING * ENTRY_BYTES, (long) keys * ENTRY_BYTES);
+            }
+            return new SPNCodebookStore(channel, index, mappings, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long dataOffset(int count) {
+        long indexEnd = HEADER_BYTES + 4L * count;
+        return (indexEnd + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the packed keys contained in the store in ascending order
+     */
+    public int[] keys() {
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = index.getInt(4 * i);
+        }
+        return keys;
+    }
+
+    public boolean contains(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns a cipher that reads the mapped tables of a key
+     *
+     * The returned object only holds two buffer views, the tables stay off the Java heap.
+     *
+     * @param key Packed 32-bit key (see SPNExpandedKey.pack)
+     * @return The cipher or null if the store does not contain the key
+     */
+    public SPNBlockCipher get(int key) {
+        int position = find(key);
+        if (position < 0) {
+            return null;
+        }
+        MappedByteBuffer mapping = mappings[position / KEYS_PER_MAPPING];
+        int offset = (position % KEYS_PER_MAPPING) * ENTRY_BYTES;
+        ShortBuffer encrypt = mapping.slice(offset, TABLE_BYTES).asShortBuffer();
+        ShortBuffer decrypt = mapping.slice(offset + TABLE_BYTES, TABLE_BYTES).asShortBuffer();
+        return new MappedCodebook(encrypt, decrypt);
+    }
+
+    // Binary search in the mapped key index
+    private int find(int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = index.getInt(4 * middle);
+            if (value < key) {
+                low = middle + 1;
+            } else if (value > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Closes the file, existing mappings stay valid until they are garbage collected
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Block cipher backed by the mapped tables of one key
+    private static final class MappedCodebook implements SPNBlockCipher {
+        private final ShortBuffer encryptTable;
+        private final ShortBuffer decryptTable;
+
+        MappedCodebook(ShortBuffer encryptTable, ShortBuffer decryptTable) {
+            this.encryptTable = encryptTable;
+            this.decryptTable = decryptTable;
+        }
+
+        @Override
+        public int encryptBlock(int block) {
+            return encryptTable.get(block) & 0xFFFF;
+        }
+
+        @Override
+        public int decryptBlock(int block) {
+            return decryptTable.get(block) & 0xFFFF;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("build")) {
+            int[] keys = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                keys[i - 2] = SPNExpandedKey.pack(CombinedSPN.Helper.parseKey(args[i]));
+            }
+            long start = System.nanoTime();
+            write(Paths.get(args[1]), keys);
+            System.out.printf("Wrote codebooks for %d keys in %.1f ms%n", keys.length, (System.nanoTime() - start) / 1e6);
+        } else if (args.length == 2 && args[0].equals("info")) {
+            try (SPNCodebookStore store = open(Paths.get(args[1]))) {
+                System.out.println(store.size() + " keys:");
+                Arrays.stream(store.keys()).forEach(key -> System.out.printf("  %08x%n", key));
+            }
+        } else {
+            System.err.println("Usage: java SPNCodebookStore build <file> <key>... | info <file>");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * SPN for arbitrary S-box width, number of S-boxes and rounds
+ *
+ * CombinedSPN.SPN is fixed to the 4x4 network of the assignment. This engine takes the
+ * parameters of the same construction:
+ * - n bits per S-box, m S-boxes, block size n * m bits (at most 64)
+ * - an S-box with 2^n entries and a bit permutation of the n * m block bits
+ * - the key as m + rounds digits of n bits, round key i consists of the digits i .. i + m - 1
+ *
+ * Blocks are packed into a long, the first bit of the block (bit 0 of the permutation) is the
+ * most significant of the n * m bits. For every configuration the S-box and the permutation are
+ * combined into lookup tables per S-box position, so a round costs m table lookups.
+ *
+ * With n = 4, m = 4, the S-box and the permutation of the assignment the engine computes the
+ * same results as CombinedSPN.SPN.
+ */
+public final class SPNEngine {
+    /** S-box of the assignment */
+    public static final int[] ASSIGNMENT_SBOX = {0xE, 4, 0xD, 1, 2, 0xF, 0xB, 8, 3, 0xA, 6, 0xC, 5, 9, 0, 7};
+
+    private final int n;
+    private final int m;
+    private final int rounds;
+    private final int blockBits;
+    private final long blockMask;
+    private final int digitMask;
+
+    private final int[] permutation;
+    private final long[] encryptionKeys;
+    private final long[] decryptionKeys;
+    // Lookup tables [position][digit]: SP combines S-box and permutation, S only places the digit
+    private final long[][] spEncrypt;
+    private final long[][] sEncrypt;
+    private final long[][] spDecrypt;
+    private final long[][] sDecrypt;
+
+    /**
+     * @param n Bits per S-box (1..16)
+     * @param m Number of S-boxes, n * m must not exceed 64
+     * @param rounds Number of rounds (at least 1)
+     * @param sBox Permutation of 0 .. 2^n - 1
+     * @param permutation Bit permutation, bit i of the block moves to position permutation[i]
+     * @param key m + rounds digits of n bits
+     */
+    public SPNEngine(int n, int m, int rounds, int[] sBox, int[] permutation, int[] key) {
+        if (n < 1 || n > 16 || m < 1 || n * m > 64) {
+            throw new IllegalArgumentException("Block size n * m must be between 1 and 64 bits with n <= 16");
+        }
+        if (rounds < 1) {
+            throw new IllegalArgumentException("At least one round is required");
+        }
+        int[] inverseSBox = inverse(sBox, 1 << n, "S-box");
+        int[] inversePermutation = inverse(permutation, n * m, "Permutation");
+        if (key.length != m + rounds) {
+            throw new IllegalArgumentException("Key must consist of m + rounds = " + (m + rounds) + " digits");
+        }
+        this.n = n;
+        this.m = m;
+        this.rounds = rounds;
+        this.blockBits = n * m;
+        this.blockMask = blockBits == 64 ? -1L : (1L << blockBits) - 1;
+        this.digitMask = (1 << n) - 1;
+        this.permutation = permutation.clone();
+
+        spEncrypt = tables(sBox, permutation);
+        sEncrypt = tables(sBox, null);
+        spDecrypt = tables(inverseSBox, inversePermutation);
+        sDecrypt = tables(inverseSBox, null);
+
+        long[] roundKeys = new long[rounds + 1];
+        for (int round = 0; round <= rounds; round++) {
+            long roundKey = 0;
+            for (int i = round; i < round + m; i++) {
+                if (key[i] < 0 || key[i] > digitMask) {
+                    throw new IllegalArgumentException("Key digits must have " + n + " bits");
+                }
+                roundKey = (roundKey << n) | key[i];
+            }
+            roundKeys[round] = roundKey;
+        }
+        // Decryption runs the rounds backwards, the inner round keys go through the inverse permutation
+        encryptionKeys = roundKeys;
+        decryptionKeys = new long[rounds + 1];
+        decryptionKeys[0] = roundKeys[rounds];
+        for (int round = 1; round < rounds; round++) {
+            decryptionKeys[round] = permute(roundKeys[rounds - round], inversePermutation);
+        }
+        decryptionKeys[rounds] = roundKeys[0];
+    }
+
+    /**
+     * Engine with the S-box of the assignment on all S-boxes and the transposition permutation
+     *
+     * @param m Number of 4-bit S-boxes (1..16), m = 4 is the network of the assignment
+     * @param rounds Number of rounds
+     * @param key m + rounds 4-bit digits
+     */
+    public static SPNEngine withAssignmentSBox(int m, int rounds, int[] key) {
+        return new SPNEngine(4, m, rounds, ASSIGNMENT_SBOX, transposition(4, m), key);
+    }
+
+    /**
+     * The permutation of the assignment, generalized: bit j of S-box i moves to bit i of S-box j
+     * (for n != m the bits are spread accordingly: bit i * n + j moves to j * m + i)
+     */
+    public static int[] transposition(int n, int m) {
+        int[] permutation = new int[n * m];
+        for (int i = 0; i < n * m; i++) {
+            permutation[i] = (i % n) * m + i / n;
+        }
+        return permutation;
+    }
+
+    public int blockBits() {
+        return blockBits;
+    }
+
+    public int rounds() {
+        return rounds;
+    }
+
+    /**
+     * Encrypts a block of n * m bits
+     */
+    public long encryptBlock(long block) {
+        long state = (block & blockMask) ^ encryptionKeys[0];
+        for (int round = 1; round < rounds; round++) {
+            state = substitute(spEncrypt, state) ^ encryptionKeys[round];
+        }
+        return substitute(sEncrypt, state) ^ encryptionKeys[rounds];
+    }
+
+    /**
+     * Decrypts a block of n * m bits
+     */
+    public long decryptBlock(long block) {
+        long state = (block & blockMask) ^ decryptionKeys[0];
+        for (int round = 1; round < rounds; round++) {
+            state = substitute(spDecrypt, state) ^ decryptionKeys[round];
+        }
+        return substitute(sDecrypt, state) ^ decryptionKeys[rounds];
+    }
+
+    /**
+     * Encrypts a block with round keys given by the caller instead of the key of the engine
+     *
+     * Used where the key changes with every block (SPNHash), so only the tables of the engine
+     * are shared. The number of rounds is roundKeys.length - 1.
+     */
+    long encryptBlock(long block, long[] roundKeys) {
+        int lastRound = roundKeys.length - 1;
+        long state = (block & blockMask) ^ roundKeys[0];
+        for (int round = 1; round < lastRound; round++) {
+            state = substitute(spEncrypt, state) ^ roundKeys[round];
+        }
+        return substitute(sEncrypt, state) ^ roundKeys[lastRound];
+    }
+
+    /**
+     * Encrypts a block and reports every intermediate state, like CombinedSPN.SPN does it
+     *
+     * Separate from encryptBlock(long), which has no tracing code. Without observer it simply
+     * calls encryptBlock(long).
+     *
+     * @param observer Receives the states of every round, may be null
+     * @throws IllegalStateException if the blocks are wider than the 32 bits of the observer
+     */
+    public long encryptBlock(long block, SPNRoundObserver observer) {
+        if (observer == null) {
+            return encryptBlock(block);
+        }
+        if (blockBits > 32) {
+            throw new IllegalStateException("Round observers support blocks up to 32 bits");
+        }
+        long state = (block & blockMask) ^ encryptionKeys[0];
+        observer.onRound(0, (int) block, (int) block, (int) state);
+        for (int round = 1; round < rounds; round++) {
+            long substituted = substitute(sEncrypt, state);
+            long permuted = permute(substituted, permutation);
+            state = permuted ^ encryptionKeys[round];
+            observer.onRound(round, (int) substituted, (int) permuted, (int) state);
+        }
+        long substituted = substitute(sEncrypt, state);
+        state = substituted ^ encryptionKeys[rounds];
+        observer.onRound(rounds, (int) substituted, (int) substituted, (int) state);
+        return state;
+    }
+
+    /**
+     * Applies the CTR keystream to a byte range in place
+     *
+     * Like SPNBlockCipher.ctrXor, but with blocks of blockBits / 8 bytes (big endian) and the
+     * counter iv + firstBlock + i modulo 2^blockBits. With 64-bit blocks the counter never
+     * wraps in practice.
+     *
+     * @throws IllegalStateException if the block size is not a multiple of 8 bits
+     */
+    public void ctrXor(long iv, long firstBlock, byte[] data, int off, int len) {
+        if (blockBits % 8 != 0) {
+            throw new IllegalStateException("CTR on bytes requires a block size that is a multiple of 8 bits");
+        }
+        int blockBytes = blockBits / 8;
+        if (len % blockBytes != 0) {
+            throw new IllegalArgumentException("Length must be a multiple of the block size");
+        }
+        long counter = iv + firstBlock;
+        for (int i = off; i < off + len; i += blockBytes) {
+            long keystream = encryptBlock(counter & blockMask);
+            for (int b = blockBytes - 1; b >= 0; b--) {
+                data[i + b] ^= (byte) keystream;
+                keystream >>>= 8;
+            }
+            counter++;
+        }
+    }
+
+    /**
+     * Returns this engine as 16-bit block cipher, e.g. for SPNModes or SPNFileCipher
+     *
+     * @throws IllegalStateException if the block size is not 16 bits
+     */
+    public SPNBlockCipher asBlockCipher() {
+        if (blockBits != 16) {
+            throw new IllegalStateException("SPNBlockCipher requires 16-bit blocks");
+        }
+        return new SPNBlockCipher() {
+            @Override
+            public int encryptBlock(int block) {
+                return (int) SPNEngine.this.encryptBlock(block);
+            }
+
+            @Override
+            public int decryptBlock(int block) {
+                return (int) SPNEngine.this.decryptBlock(block);
+            }
+        };
+    }
+
+    // Looks up every digit of the state and combines the results
+    private long substitute(long[][] tables, long state) {
+        long result = 0;
+        int shift = blockBits - n;
+        for (int position = 0; position < m; position++) {
+            result ^= tables[position][(int) (state >>> shift) & digitMask];
+            shift -= n;
+        }
+        return result;
+    }
+
+    // Tables for every S-box position, optionally followed by the permutation
+    private long[][] tables(int[] box, int[] permutation) {
+        long[][] tables = new long[m][1 << n];
+        for (int position = 0; position < m; position++) {
+            for (int value = 0; value <= digitMask; value++) {
+                long placed = (long) box[value] << (blockBits - n - position * n);
+                tables[position][value] = permutation == null ? placed : permute(placed, permutation);
+            }
+        }
+        return tables;
+    }
+
+    // Moves bit i (0 = most significant of the block) to position permutation[i]
+    private long permute(long state, int[] permutation) {
+        long result = 0;
+        for (int i = 0; i < blockBits; i++) {
+            long bit = (state >>> (blockBits - 1 - i)) & 1;
+            result |= bit << (blockBits - 1 - permutation[i]);
+        }
+        return result;
+    }
+
+    // Checks that values is a permutation of 0 .. size - 1 and returns its inverse
+    private static int[] inverse(int[] values, int size, String name) {
+        if (values.length != size) {
+            throw new IllegalArgumentException(name + " must have " + size + " entries");
+        }
+        int[] inverse = new int[size];
+        Arrays.fill(inverse, -1);
+        for (int i = 0; i < size; i++) {
+            int value = values[i];
+            if (value < 0 || value >= size || inverse[value] != -1) {
+                throw new IllegalArgumentException(name + " must be a permutation of 0.." + (size - 1));
+            }
+            inverse[value] = i;
+        }
+        return inverse;
+    }
+}
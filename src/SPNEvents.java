@@ -0,0 +1,127 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import java.util.function.Supplier;
+
+/**
+ * JDK Flight Recorder events of the SPN cipher
+ *
+ * The events show up in every recording (e.g. java -XX:StartFlightRecording ...) next to the
+ * GC and I/O events of the JVM. They are written without stack traces and only if they take
+ * longer than their threshold, so they can stay enabled in production. Thresholds can be
+ * changed in the recording settings, e.g. spn.CtrBatch#threshold=0 ms to see every batch.
+ *
+ * Events are only created if recording() is true: creating the first event initializes parts
+ * of the recorder, which costs a few hundred milliseconds of start-up in short runs.
+ * Callers therefore use begin and end:
+ *
+ *   SPNEvents.CtrBatch event = SPNEvents.begin(SPNEvents.CtrBatch::new);
+ *   ...
+ *   if (SPNEvents.end(event)) {
+ *       event.blocks = ...;
+ *       event.commit();
+ *   }
+ */
+final class SPNEvents {
+    private SPNEvents() {
+    }
+
+    /**
+     * Whether the Flight Recorder is initialized, i.e. a recording was started at launch or later
+     * (jcmd JFR.start). Until then no event is created.
+     */
+    static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * Creates and begins an event if the recorder is initialized
+     *
+     * @return The event, or null if nothing is recorded (the factory is not called then)
+     */
+    static <E extends Event> E begin(Supplier<E> factory) {
+        if (!recording()) {
+            return null;
+        }
+        E event = factory.get();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends an event created by begin
+     *
+     * @param event The event or null
+     * @return Whether the caller should fill in the fields and commit the event
+     */
+    static boolean end(Event event) {
+        if (event == null) {
+            return false;
+        }
+        event.end();
+        return event.shouldCommit();
+    }
+
+    @Name("spn.KeySchedule")
+    @Label("SPN Key Schedule")
+    @Category({"SPN", "Key Setup"})
+    @Description("Computation of the round keys of an SPN instance")
+    @StackTrace(false)
+    @Threshold("20 us")
+    static final class KeySchedule extends Event {
+        @Label("Rounds")
+        int rounds;
+    }
+
+    @Name("spn.CodebookBuild")
+    @Label("SPN Codebook Build")
+    @Category({"SPN", "Key Setup"})
+    @Description("Computation of the complete encryption and decryption tables of a key")
+    @StackTrace(false)
+    @Threshold("0 ms")
+    static final class CodebookBuild extends Event {
+        @Label("Target")
+        @Description("Where the tables are stored: heap or mapped")
+        String target;
+    }
+
+    @Name("spn.CtrBatch")
+    @Label("SPN CTR Batch")
+    @Category({"SPN", "Cipher"})
+    @Description("Application of the CTR keystream to a range of blocks")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class CtrBatch extends Event {
+        @Label("Blocks")
+        long blocks;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Engine")
+        @Description("Implementation that generated the keystream")
+        String engine;
+    }
+
+    @Name("spn.KeyCacheLookup")
+    @Label("SPN Key Cache Lookup")
+    @Category({"SPN", "Key Setup"})
+    @Description("Lookup of an expanded key in the keyring, misses include the key setup")
+    @StackTrace(false)
+    @Threshold("20 us")
+    static final class KeyCacheLookup extends Event {
+        @Label("Key Fingerprint")
+        @Description("Truncated HMAC of the key ID with a random secret of the keyring, never the ID itself")
+        String keyFingerprint;
+
+        @Label("Hit")
+        boolean hit;
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Immutable, fully expanded SPN cipher for one 32-bit key
+ *
+ * Holds the encryption and decryption round keys (inside the wrapped SPN, which never changes
+ * them after construction) and optionally the complete codebooks: with 16-bit blocks the
+ * encryption and decryption of every possible block fit into two tables of 128 KB each, so a
+ * block operation becomes a single array lookup. The codebooks are either computed on the heap
+ * or read from the mapped tables of an SPNCodebookStore. Without codebooks the blocks run
+ * through the rounds, either of the SPN or of a class generated by SPNCipherCompiler.
+ */
+public final class SPNExpandedKey implements SPNBlockCipher {
+    private static final int BLOCKS = 1 << 16;
+    private static final long COMPILED_CLASS_BYTES = 4096;
+
+    private final int key;
+    private final CombinedSPN.SPN spn;
+    private final short[] encryptTable;
+    private final short[] decryptTable;
+    // Codebooks of an SPNCodebookStore, off the heap
+    private final SPNBlockCipher mappedCodebook;
+    // Round by round cipher without codebooks: the SPN or the class generated for the key
+    private final SPNBlockCipher rounds;
+
+    /**
+     * @param key The 32-bit key, first 4-bit value of the key array in the highest nibble
+     * @param codebooks Whether the complete encryption and decryption tables are built
+     */
+    public SPNExpandedKey(int key, boolean codebooks) {
+        this.key = key;
+        this.spn = new CombinedSPN.SPN(4, 4, 4, unpack(key));
+        if (codebooks) {
+            SPNEvents.CodebookBuild event = SPNEvents.begin(SPNEvents.CodebookBuild::new);
+            encryptTable = new short[BLOCKS];
+            decryptTable = new short[BLOCKS];
+            for (int block = 0; block < BLOCKS; block++) {
+                int encrypted = spn.encryptBlock(block);
+                encryptTable[block] = (short) encrypted;
+                decryptTable[encrypted] = (short) block;
+            }
+            if (SPNEvents.end(event)) {
+                event.target = "heap";
+                event.commit();
+            }
+        } else {
+            encryptTable = null;
+            decryptTable = null;
+        }
+        this.mappedCodebook = null;
+        this.rounds = spn;
+    }
+
+    /**
+     * Key without codebooks whose blocks run through the class the compiler generates for it
+     *
+     * The compiler caches the classes per key, so an evicted and reloaded key gets its class
+     * back. If no class can be generated the SPN is used.
+     */
+    public SPNExpandedKey(int key, SPNCipherCompiler compiler) {
+        this.key = key;
+        this.spn = new CombinedSPN.SPN(4, 4, 4, unpack(key));
+        this.encryptTable = null;
+        this.decryptTable = null;
+        this.mappedCodebook = null;
+        this.rounds = compiler.compile(spn);
+    }
+
+    /**
+     * Key whose codebooks are the mapped tables of a store, see SPNCodebookStore.get
+     */
+    SPNExpandedKey(int key, SPNBlockCipher mappedCodebook) {
+        this.key = key;
+        this.spn = new CombinedSPN.SPN(4, 4, 4, unpack(key));
+        this.encryptTable = null;
+        this.decryptTable = null;
+        this.mappedCodebook = mappedCodebook;
+        this.rounds = spn;
+    }
+
+    /**
+     * Packs the eight 4-bit values of a key (see CombinedSPN.Helper.parseKey) into an int
+     */
+    public static int pack(int[] key) {
+        if (key.length != 8) {
+            throw new IllegalArgumentException("Key must consist of eight 4-bit values");
+        }
+        int packed = 0;
+        for (int value : key) {
+            packed = (packed << 4) | (value & 0xF);
+        }
+        return packed;
+    }
+
+    /**
+     * Splits a packed 32-bit key into its eight 4-bit values
+     */
+    public static int[] unpack(int key) {
+        int[] values = new int[8];
+        for (int i = 0; i < 8; i++) {
+            values[i] = (key >>> (28 - 4 * i)) & 0xF;
+        }
+        return values;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public boolean hasCodebooks() {
+        return encryptTable != null || mappedCodebook != null;
+    }
+
+    /**
+     * Approximate heap usage of this instance in bytes
+     */
+    public long memoryBytes() {
+        // SPN object with its round key arrays, plus the two codebooks if present. Mapped codebooks
+        // live in the page cache.
+        long bytes = 256;
+        if (encryptTable != null) {
+            bytes += 2L * (16 + 2L * BLOCKS);
+        }
+        if (rounds != spn) {
+            // Rough size of the generated class, it holds the round keys as constants
+            bytes += COMPILED_CLASS_BYTES;
+        }
+        return bytes;
+    }
+
+    @Override
+    public int encryptBlock(int block) {
+        if (encryptTable != null) {
+            return encryptTable[block] & 0xFFFF;
+        }
+        return mappedCodebook != null ? mappedCodebook.encryptBlock(block) : rounds.encryptBlock(block);
+    }
+
+    @Override
+    public int decryptBlock(int block) {
+        if (decryptTable != null) {
+            return decryptTable[block] & 0xFFFF;
+        }
+        return mappedCodebook != null ? mappedCodebook.decryptBlock(block) : rounds.decryptBlock(block);
+    }
+}
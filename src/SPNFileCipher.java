@@ -0,0 +1,625 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming CTR encryption of files
+ *
+ * Files are never loaded completely, they are read in chunks from a small pool of reusable
+ * buffers. A reader thread fills the next buffers while the current one is encrypted and
+ * written, so reading and encrypting overlap while memory usage stays bounded.
+ *
+ * Container format:
+ * - 3 bytes magic "SPN"
+ * - 1 byte version
+ * - 1 byte flags (0 or FLAG_DEFLATE)
+ * - 2 bytes IV (big endian)
+ * - ciphertext blocks
+ *
+ * Before encryption the plaintext is padded like the binary strings in the GUI: a '1' bit
+ * followed by '0' bits until the length is a multiple of 16 bits (0x80 or 0x80 0x00).
+ *
+ * The counter has 16 bits, so the ciphertext of a container is limited to
+ * SPNBlockCipher.MAX_CTR_BLOCKS blocks (128 KiB). Longer files are rejected with an IOException
+ * instead of encrypting the rest with the same keystream again; with compression the limit
+ * applies to the compressed frames. The default buffers of 16 KiB still split the largest
+ * container into several chunks, so reading and encrypting overlap.
+ *
+ * Files of the same key must not share counters. Callers without an IV scheme of their own
+ * take the IV from an SPNNonceService, see encrypt(Path, Path, SPNNonceService, String, ...).
+ *
+ * With compression every chunk of the plaintext is deflated on its own into a frame, and the
+ * frames are padded and encrypted instead of the plaintext:
+ * - 4 bytes length of the deflated data, 4 bytes length of the chunk (big endian)
+ * - the deflated data (raw deflate), followed by a zero byte if its length is odd
+ * Frames do not depend on each other and start at block boundaries, so they can be decrypted
+ * and inflated independently. Text and log files shrink to a fraction, which saves cipher work
+ * and I/O in the same proportion.
+ */
+public class SPNFileCipher {
+    /** File extension appended to encrypted files */
+    public static final String EXTENSION = ".spn";
+
+    static final byte[] MAGIC = {'S', 'P', 'N'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 7;
+    /** Flag: the payload consists of deflated frames */
+    static final int FLAG_DEFLATE = 1;
+    static final int FRAME_HEADER_LENGTH = 8;
+    // Largest chunk length of a frame accepted when decrypting, bounds the buffers of the inflater
+    private static final int MAX_FRAME_LENGTH = 1 << 26;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 14;
+    private static final int DEFAULT_BUFFER_COUNT = 4;
+
+    /**
+     * Receives the progress of an operation, called once per processed chunk
+     */
+    public interface Progress {
+        void update(long processedBytes, long totalBytes);
+    }
+
+    private final SPNBlockCipher cipher;
+    private final int bufferSize;
+    private final int bufferCount;
+
+    /**
+     * Constructor using 4 buffers of 16 KiB
+     */
+    public SPNFileCipher(SPNBlockCipher cipher) {
+        this(cipher, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param cipher The block cipher used to generate the keystream
+     * @param bufferSize Size of a single buffer in bytes, must be even
+     * @param bufferCount Number of buffers in the pool, at least 2 so reading and encrypting can overlap
+     */
+    public SPNFileCipher(SPNBlockCipher cipher, int bufferSize, int bufferCount) {
+        if (bufferSize < 2 || (bufferSize & 1) != 0) {
+            throw new IllegalArgumentException("Buffer size must be even and positive");
+        }
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("At least two buffers are required");
+        }
+        this.cipher = cipher;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Returns the path of the container created next to the source file
+     */
+    public static Path encryptedPath(Path source) {
+        return source.resolveSibling(source.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Returns the path of the decrypted file: the container name without ".spn", or with
+     * ".dec" appended if that file already exists
+     */
+    public static Path decryptedPath(Path source) {
+        String name = source.getFileName().toString();
+        if (name.endsWith(EXTENSION) && name.length() > EXTENSION.length()) {
+            Path target = source.resolveSibling(name.substring(0, name.length() - EXTENSION.length()));
+            if (!Files.exists(target)) {
+                return target;
+            }
+        }
+        return source.resolveSibling(name + ".dec");
+    }
+
+    /**
+     * Encrypts a file with an IV whose counters were never used with the key
+     *
+     * @param nonces Tracks the used counters, usually SPNNonceService.shared()
+     * @param keyId ID of the key of this file cipher in the nonce service
+     * @throws SPNNonceService.CounterReuseException if the key has no unused range of that size
+     */
+    public void encrypt(Path source, Path target, SPNNonceService nonces, String keyId, boolean compress,
+                        Progress progress) throws IOException {
+        encrypt(source, target, blocks -> nonces.nextIv(keyId, blocks), compress, progress);
+    }
+
+    /**
+     * Encrypts a file with an IV that is chosen for the exact number of blocks of the container
+     *
+     * The compressed size is only known after the file was read, so compressed frames are
+     * collected in memory first (at most 128 KiB, larger payloads fail anyway) and encrypted
+     * once their IV is known.
+     *
+     * @param ivSource Returns the IV for a container of the given number of blocks and marks its
+     *                 counters as used, e.g. with an SPNNonceService
+     */
+    public void encrypt(Path source, Path target, IntUnaryOperator ivSource, boolean compress, Progress progress)
+        throws IOException {
+        long total = Files.size(source);
+        if (!compress) {
+            long blocks = total / 2 + 1;
+            checkCounter(blocks);
+            encrypt(source, target, ivSource.applyAsInt((int) blocks), false, progress);
+            return;
+        }
+        ByteArrayOutputStream container = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(source)) {
+            writeContainer(in, container, 0, total, true, progress, false);
+        }
+        byte[] data = container.toByteArray();
+        int length = data.length - HEADER_LENGTH;
+        int iv = ivSource.applyAsInt(length / 2);
+        data[5] = (byte) (iv >>> 8);
+        data[6] = (byte) iv;
+        cipher.ctrXor(iv, 0, data, HEADER_LENGTH, length);
+        try {
+            Files.write(target, data);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts a file into a container
+     *
+     * If the operation fails or the thread is interrupted the partially written target is deleted.
+     *
+     * @param source The plaintext file
+     * @param target The container file to create
+     * @param iv The initial counter value (0..65535)
+     * @param compress Whether the chunks are deflated before encryption
+     * @param progress Receives the number of processed plaintext bytes, may be null
+     * @return Number of ciphertext blocks, i.e. counters used
+     */
+    public long encrypt(Path source, Path target, int iv, boolean compress, Progress progress) throws IOException {
+        long total = Files.size(source);
+        if (!compress) {
+            // Fails before the target is created, compressed sizes are only known while encrypting
+            checkCounter(total / 2 + 1);
+        }
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = Files.newOutputStream(target)) {
+            return encrypt(in, out, iv, total, compress, progress);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts a container file
+     *
+     * If the operation fails or the thread is interrupted the partially written target is deleted.
+     *
+     * @param source The container file
+     * @param target The plaintext file to create
+     * @param progress Receives the number of processed container bytes, may be null
+     */
+    public void decrypt(Path source, Path target, Progress progress) throws IOException {
+        long total = Files.size(source);
+        checkCounter((total - HEADER_LENGTH) / 2);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = Files.newOutputStream(target)) {
+            decrypt(in, out, total, progress);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts a stream into the container format
+     *
+     * @param in The plaintext
+     * @param out Receives the container
+     * @param iv The initial counter value (0..65535)
+     * @param total Expected number of plaintext bytes, only used for the progress
+     * @param compress Whether the chunks are deflated before encryption
+     * @param progress Receives the number of processed plaintext bytes, may be null
+     * @return Number of ciphertext blocks, i.e. counters used
+     */
+    public long encrypt(InputStream in, OutputStream out, int iv, long total, boolean compress, Progress progress)
+        throws IOException {
+        return writeContainer(in, out, iv, total, compress, progress, true);
+    }
+
+    // Writes the container, without encryption the payload stays plaintext for a later ctrXor
+    private long writeContainer(InputStream in, OutputStream out, int iv, long total, boolean compress,
+                                Progress progress, boolean encrypt) throws IOException {
+        int flags = compress ? FLAG_DEFLATE : 0;
+        out.write(new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], (byte) VERSION, (byte) flags, (byte) (iv >>> 8), (byte) iv});
+
+        ChunkReader reader = new ChunkReader(in);
+        FrameDeflater deflater = compress ? new FrameDeflater(bufferSize) : null;
+        long block = 0;
+        long processed = 0;
+        try {
+            while (true) {
+                Chunk chunk = reader.next();
+                boolean last = chunk.last;
+                processed += chunk.length;
+                byte[] data = chunk.data;
+                int length = chunk.length;
+                if (deflater != null) {
+                    data = deflater.frame;
+                    length = deflater.deflate(chunk.data, chunk.length);
+                }
+                if (last) {
+                    // Padding: a '1' bit followed by '0' bits up to the next block boundary
+                    data[length++] = (byte) 0x80;
+                    if ((length & 1) != 0) {
+                        data[length++] = 0;
+                    }
+                }
+                checkCounter(block + length / 2);
+                if (encrypt) {
+                    cipher.ctrXor(iv, block, data, 0, length);
+                }
+                out.write(data, 0, length);
+                block += length / 2;
+                reader.release(chunk);
+                if (progress != null) {
+                    progress.update(processed, total);
+                }
+                if (last) {
+                    return block;
+                }
+            }
+        } finally {
+            reader.stop();
+            if (deflater != null) {
+                deflater.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decrypts a container stream, compressed containers are inflated
+     *
+     * @param in The container
+     * @param out Receives the plaintext
+     * @param total Expected number of container bytes, only used for the progress
+     * @param progress Receives the number of processed container bytes, may be null
+     */
+    public void decrypt(InputStream in, OutputStream out, long total, Progress progress) throws IOException {
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        int iv = readHeader(header);
+        if (isCompressed(header)) {
+            FrameInflater inflater = new FrameInflater(out);
+            try {
+                decrypt(in, inflater, iv, total, progress);
+                inflater.finish();
+            } finally {
+                inflater.inflater.end();
+            }
+        } else {
+            decrypt(in, out, iv, total, progress);
+        }
+    }
+
+    // Decrypts the ciphertext blocks after the header and removes the padding
+    private void decrypt(InputStream in, OutputStream out, int iv, long total, Progress progress) throws IOException {
+
+        ChunkReader reader = new ChunkReader(in);
+        long block = 0;
+        long processed = HEADER_LENGTH;
+        // The last block holds the padding, so the final two bytes are only written at the end
+        byte[] pending = new byte[2];
+        boolean hasPending = false;
+        try {
+            while (true) {
+                Chunk chunk = reader.next();
+                int length = chunk.length;
+                boolean last = chunk.last;
+                if ((length & 1) != 0) {
+                    throw new IOException("Ciphertext length is not a multiple of the block size");
+                }
+                processed += length;
+                checkCounter(block + length / 2);
+                cipher.ctrXor(iv, block, chunk.data, 0, length);
+                block += length / 2;
+                if (length > 0) {
+                    if (hasPending) {
+                        out.write(pending);
+                    }
+                    out.write(chunk.data, 0, length - 2);
+                    pending[0] = chunk.data[length - 2];
+                    pending[1] = chunk.data[length - 1];
+                    hasPending = true;
+                }
+                reader.release(chunk);
+                if (progress != null) {
+                    progress.update(processed, total);
+                }
+                if (last) {
+                    break;
+                }
+            }
+        } finally {
+            reader.stop();
+        }
+
+        if (!hasPending) {
+            throw new IOException("Container contains no ciphertext");
+        }
+        if ((pending[1] & 0xFF) == 0x80) {
+            out.write(pending[0]);
+        } else if ((pending[0] & 0xFF) != 0x80 || pending[1] != 0) {
+            throw new IOException("Invalid padding, wrong key or damaged container");
+        }
+    }
+
+    // Validates the container header and returns the IV
+    static int readHeader(byte[] header) throws IOException {
+        if (header.length < HEADER_LENGTH
+            || header[0] != MAGIC[0] || header[1] != MAGIC[1] || header[2] != MAGIC[2]) {
+            throw new IOException("Not an SPN container");
+        }
+        if (header[3] != VERSION) {
+            throw new IOException("Unsupported container version " + header[3]);
+        }
+        if ((header[4] & ~FLAG_DEFLATE) != 0) {
+            throw new IOException("Unsupported container flags " + header[4]);
+        }
+        return ((header[5] & 0xFF) << 8) | (header[6] & 0xFF);
+    }
+
+    // Whether the payload of a validated container consists of deflated frames
+    static boolean isCompressed(byte[] header) {
+        return (header[4] & FLAG_DEFLATE) != 0;
+    }
+
+    // Rejects ciphertext that would continue past the last counter value
+    static void checkCounter(long blocks) throws IOException {
+        if (blocks > SPNBlockCipher.MAX_CTR_BLOCKS) {
+            throw new IOException("File too large, the 16-bit counter allows at most "
+                + SPNBlockCipher.MAX_CTR_BLOCKS * 2 / 1024 + " KiB of ciphertext");
+        }
+    }
+
+    // Largest raw deflate output for length input bytes (the bound of zlib plus some spare)
+    private static int deflateBound(int length) {
+        return length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 64;
+    }
+
+    private static void putInt(byte[] data, int off, int value) {
+        data[off] = (byte) (value >>> 24);
+        data[off + 1] = (byte) (value >>> 16);
+        data[off + 2] = (byte) (value >>> 8);
+        data[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16) | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+    }
+
+    // Deflates a chunk into a frame, the frame buffer is reused for every chunk
+    private static final class FrameDeflater {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        // Three spare bytes for the odd length byte and the padding
+        final byte[] frame;
+
+        FrameDeflater(int chunkSize) {
+            frame = new byte[FRAME_HEADER_LENGTH + deflateBound(chunkSize) + 3];
+        }
+
+        // Returns the length of the frame, 0 for an empty chunk
+        int deflate(byte[] data, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            int compressed = deflater.deflate(frame, FRAME_HEADER_LENGTH, frame.length - FRAME_HEADER_LENGTH - 3);
+            if (!deflater.finished()) {
+                throw new IllegalStateException("Deflated chunk exceeds its bound");
+            }
+            putInt(frame, 0, compressed);
+            putInt(frame, 4, length);
+            int frameLength = FRAME_HEADER_LENGTH + compressed;
+            if ((frameLength & 1) != 0) {
+                frame[frameLength++] = 0;
+            }
+            return frameLength;
+        }
+    }
+
+    /**
+     * Inflates the frames of a decrypted compressed payload into a stream
+     *
+     * Frames may arrive split at any position. The buffers grow to the largest frame, which is
+     * the chunk size used for the encryption. The frame headers are checked against the output
+     * limit before any buffer is allocated, so a small container cannot expand into a huge one.
+     */
+    static final class FrameInflater extends OutputStream {
+        private final OutputStream out;
+        private final long maxOutput;
+        private long produced;
+        final Inflater inflater = new Inflater(true);
+        private final byte[] header = new byte[FRAME_HEADER_LENGTH];
+        private int headerLength;
+        private byte[] input = new byte[0];
+        private int inputLength;
+        private int bodyLength;
+        private byte[] output = new byte[0];
+
+        FrameInflater(OutputStream out) {
+            this(out, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param maxOutput Largest total number of plaintext bytes, larger payloads are rejected
+         */
+        FrameInflater(OutputStream out, long maxOutput) {
+            this.out = out;
+            this.maxOutput = maxOutput;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            while (len > 0) {
+                int count;
+                if (headerLength < FRAME_HEADER_LENGTH) {
+                    count = Math.min(len, FRAME_HEADER_LENGTH - headerLength);
+                    System.arraycopy(data, off, header, headerLength, count);
+                    headerLength += count;
+                    if (headerLength == FRAME_HEADER_LENGTH) {
+                        startFrame();
+                    }
+                } else {
+                    count = Math.min(len, bodyLength - inputLength);
+                    System.arraycopy(data, off, input, inputLength, count);
+                    inputLength += count;
+                    if (inputLength == bodyLength) {
+                        inflateFrame();
+                    }
+                }
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Checks that the payload ended after a complete frame
+         */
+        void finish() throws IOException {
+            if (headerLength != 0) {
+                throw new IOException("Container ends within a compressed frame");
+            }
+        }
+
+        private void startFrame() throws IOException {
+            int compressed = getInt(header, 0);
+            int original = getInt(header, 4);
+            if (original <= 0 || original > MAX_FRAME_LENGTH || compressed <= 0 || compressed > deflateBound(original)) {
+                throw new IOException("Invalid compressed frame, wrong key or damaged container");
+            }
+            if (original > maxOutput - produced) {
+                throw new IOException("Decompressed data exceeds " + maxOutput + " bytes");
+            }
+            produced += original;
+            bodyLength = compressed + (compressed & 1);
+            if (input.length < bodyLength) {
+                input = new byte[bodyLength];
+            }
+            // One spare byte, so the inflater reaches the end of the deflate stream
+            if (output.length < original + 1) {
+                output = new byte[original + 1];
+            }
+        }
+
+        private void inflateFrame() throws IOException {
+            int compressed = getInt(header, 0);
+            int original = getInt(header, 4);
+            inflater.reset();
+            inflater.setInput(input, 0, compressed);
+            int length;
+            try {
+                length = inflater.inflate(output, 0, original + 1);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame, wrong key or damaged container", e);
+            }
+            if (length != original || !inflater.finished()) {
+                throw new IOException("Invalid compressed frame, wrong key or damaged container");
+            }
+            out.write(output, 0, length);
+            headerLength = 0;
+            inputLength = 0;
+        }
+    }
+
+    // A filled buffer; every chunk except the last one is completely filled
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+        boolean last;
+        IOException error;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the input on a separate thread into buffers taken from a bounded pool
+     *
+     * The reader blocks as soon as all buffers are in use, so at most bufferCount buffers
+     * exist no matter how large the input is.
+     */
+    private final class ChunkReader {
+        private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(bufferCount);
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(bufferCount);
+        private final Thread thread;
+
+        ChunkReader(InputStream in) {
+            for (int i = 0; i < bufferCount; i++) {
+                // Two spare bytes for the padding of the last chunk
+                free.add(new Chunk(new byte[bufferSize + 2]));
+            }
+            // A virtual thread, so many files can be processed concurrently without a platform thread each
+            thread = Thread.ofVirtual().name("spn-file-reader").start(() -> read(in));
+        }
+
+        private void read(InputStream in) {
+            try {
+                boolean last = false;
+                while (!last) {
+                    Chunk chunk = free.take();
+                    try {
+                        chunk.length = in.readNBytes(chunk.data, 0, bufferSize);
+                        last = chunk.length < bufferSize;
+                    } catch (IOException e) {
+                        chunk.length = 0;
+                        chunk.error = e;
+                        last = true;
+                    }
+                    chunk.last = last;
+                    filled.put(chunk);
+                }
+            } catch (InterruptedException e) {
+                // Stopped by the consumer
+            }
+        }
+
+        Chunk next() throws IOException {
+            try {
+                Chunk chunk = filled.take();
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                return chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Operation cancelled");
+            }
+        }
+
+        void release(Chunk chunk) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Operation cancelled");
+            }
+            chunk.length = 0;
+            chunk.last = false;
+            free.add(chunk);
+        }
+
+        void stop() {
+            thread.interrupt();
+        }
+    }
+}
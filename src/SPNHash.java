@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 128-bit hash function built from the 64-bit SPN, for fingerprints of large files
+ *
+ * Compression function: Davies-Meyer, the message block is the key of the cipher and the
+ * chaining value the plaintext, H' = E_m(H) ^ H. A message block has 128 bits, the 32 key
+ * digits of an SPNEngine with 16 S-boxes and 16 rounds, round key r is the 64-bit window at
+ * digit r like in the key schedule of the assignment. The chaining value has two 64-bit lanes
+ * that are compressed with the same message block and start from different IVs.
+ *
+ * The message is split into leaves of LEAF_BYTES. Every leaf is hashed on its own (with
+ * padding and its length), then the leaf values are combined pairwise up to the root, and the
+ * root is compressed once more with the total length. The tree has a fixed shape: the left
+ * subtree of every node holds the largest power of two of leaves smaller than the node's leaf
+ * count. Leaves and subtrees are therefore independent, so hash(byte[]) and hash(Path) run them
+ * as ForkJoin tasks on all cores, while update/digest computes the same value incrementally
+ * with a stack of finished subtrees.
+ *
+ * Not a cryptographic hash: the SPN of the assignment is a teaching cipher. It is meant for
+ * deduplication and integrity checks against accidental changes.
+ *
+ * Usage: java SPNHash file...
+ */
+public final class SPNHash {
+    /** Length of the digest in bytes */
+    public static final int DIGEST_LENGTH = 16;
+    /** Length of a leaf of the tree in bytes */
+    public static final int LEAF_BYTES = 1 << 16;
+
+    private static final int BLOCK_BYTES = 16;
+    private static final int ROUNDS = 16;
+    // Only the tables are used, the round keys come from the message blocks
+    private static final SPNEngine ENGINE = SPNEngine.withAssignmentSBox(16, ROUNDS, new int[16 + ROUNDS]);
+    // Initial chaining values of leaves and inner nodes (digits of pi), different for domain separation
+    private static final long LEAF_A = 0x243F6A8885A308D3L;
+    private static final long LEAF_B = 0x13198A2E03707344L;
+    private static final long PARENT_A = 0xA4093822299F31D0L;
+    private static final long PARENT_B = 0x082EFA98EC4E6C89L;
+    // Second half of the final block that holds the total length
+    private static final long ROOT_MARKER = 0x52004F4F54L;
+
+    // Chaining value and round key scratch of the current leaf
+    private final long[] state = new long[2];
+    private final long[] keys = new long[ROUNDS + 1];
+    // Incomplete message block of the current leaf
+    private final byte[] block = new byte[BLOCK_BYTES];
+    private int blockLength;
+    private int leafBytes;
+    private long totalBytes;
+    // Values of the finished subtrees, two longs each, and the number of finished leaves
+    private final long[] stack = new long[2 * 64];
+    private int depth;
+    private long leaves;
+
+    public SPNHash() {
+        reset();
+    }
+
+    /**
+     * Hashes a byte array, leaves in parallel
+     */
+    public static byte[] hash(byte[] data) {
+        int leafCount = Math.max(1, (data.length + LEAF_BYTES - 1) / LEAF_BYTES);
+        long[] root = ForkJoinPool.commonPool().invoke(new TreeTask(0, leafCount, (index, node, keys) -> {
+            int off = (int) index * LEAF_BYTES;
+            hashLeaf(data, off, Math.min(LEAF_BYTES, data.length - off), node, keys);
+        }));
+        return finish(root, data.length, new long[ROUNDS + 1]);
+    }
+
+    /**
+     * Hashes a file, leaves are read with positional reads and hashed in parallel
+     */
+    public static byte[] hash(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long leafCount = Math.max(1, (size + LEAF_BYTES - 1) / LEAF_BYTES);
+            ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[LEAF_BYTES]);
+            long[] root = ForkJoinPool.commonPool().invoke(new TreeTask(0, leafCount, (index, node, keys) -> {
+                byte[] buffer = buffers.get();
+                long position = index * LEAF_BYTES;
+                int length = (int) Math.min(LEAF_BYTES, size - position);
+                ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+                try {
+                    while (target.hasRemaining()) {
+                        if (channel.read(target, position + target.position()) < 0) {
+                            throw new IOException("File shrank while hashing: " + file);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                hashLeaf(buffer, 0, length, node, keys);
+            }));
+            return finish(root, size, new long[ROUNDS + 1]);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Adds the next part of the message
+     */
+    public void update(byte[] data, int off, int len) {
+        while (len > 0) {
+            if (leafBytes == LEAF_BYTES) {
+                // Only now it is known that the full leaf is not the last one
+                finishLeaf(block, 0, 0, LEAF_BYTES, state, keys);
+                push();
+            }
+            int count = Math.min(len, LEAF_BYTES - leafBytes);
+            leafBytes += count;
+            totalBytes += count;
+            len -= count;
+            if (blockLength > 0) {
+                int fill = Math.min(count, BLOCK_BYTES - blockLength);
+                System.arraycopy(data, off, block, blockLength, fill);
+                blockLength += fill;
+                off += fill;
+                count -= fill;
+                if (blockLength < BLOCK_BYTES) {
+                    continue;
+                }
+                compress(state, readLong(block, 0), readLong(block, 8), keys);
+                blockLength = 0;
+            }
+            for (; count >= BLOCK_BYTES; count -= BLOCK_BYTES, off += BLOCK_BYTES) {
+                compress(state, readLong(data, off), readLong(data, off + 8), keys);
+            }
+            System.arraycopy(data, off, block, 0, count);
+            blockLength = count;
+            off += count;
+        }
+    }
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Returns the hash of all data added since the last reset and resets the hash
+     */
+    public byte[] digest() {
+        finishLeaf(block, 0, blockLength, leafBytes, state, keys);
+        long[] node = {state[0], state[1]};
+        while (depth > 0) {
+            depth--;
+            parent(stack[2 * depth], stack[2 * depth + 1], node[0], node[1], node, keys);
+        }
+        byte[] digest = finish(node, totalBytes, keys);
+        reset();
+        return digest;
+    }
+
+    public void reset() {
+        state[0] = LEAF_A;
+        state[1] = LEAF_B;
+        blockLength = 0;
+        leafBytes = 0;
+        totalBytes = 0;
+        depth = 0;
+        leaves = 0;
+    }
+
+    // Stores the finished leaf and merges the subtrees that became complete
+    private void push() {
+        stack[2 * depth] = state[0];
+        stack[2 * depth + 1] = state[1];
+        depth++;
+        leaves++;
+        for (long count = leaves; (count & 1) == 0; count >>>= 1) {
+            depth--;
+            int left = 2 * (depth - 1);
+            long[] node = new long[2];
+            parent(stack[left], stack[left + 1], stack[2 * depth], stack[2 * depth + 1], node, keys);
+            stack[left] = node[0];
+            stack[left + 1] = node[1];
+        }
+        state[0] = LEAF_A;
+        state[1] = LEAF_B;
+        leafBytes = 0;
+    }
+
+    // Hashes a complete leaf into node
+    private static void hashLeaf(byte[] data, int off, int len, long[] node, long[] keys) {
+        node[0] = LEAF_A;
+        node[1] = LEAF_B;
+        int full = len - len % BLOCK_BYTES;
+        for (int i = off; i < off + full; i += BLOCK_BYTES) {
+            compress(node, readLong(data, i), readLong(data, i + 8), keys);
+        }
+        finishLeaf(data, off + full, len - full, len, node, keys);
+    }
+
+    // Pads the last incomplete block of a leaf: 0x80, zeros and the leaf length in 4 bytes
+    private static void finishLeaf(byte[] tail, int off, int len, int leafLength, long[] node, long[] keys) {
+        byte[] padded = new byte[2 * BLOCK_BYTES];
+        System.arraycopy(tail, off, padded, 0, len);
+        padded[len] = (byte) 0x80;
+        int paddedLength = len + 1 + 4 <= BLOCK_BYTES ? BLOCK_BYTES : 2 * BLOCK_BYTES;
+        for (int shift = 24, i = paddedLength - 4; shift >= 0; shift -= 8, i++) {
+            padded[i] = (byte) (leafLength >>> shift);
+        }
+        for (int i = 0; i < paddedLength; i += BLOCK_BYTES) {
+            compress(node, readLong(padded, i), readLong(padded, i + 8), keys);
+        }
+    }
+
+    // Value of an inner node: the two children as two message blocks
+    private static void parent(long leftA, long leftB, long rightA, long rightB, long[] node, long[] keys) {
+        node[0] = PARENT_A;
+        node[1] = PARENT_B;
+        compress(node, leftA, leftB, keys);
+        compress(node, rightA, rightB, keys);
+    }
+
+    // Compresses the root with the total length into the digest
+    private static byte[] finish(long[] root, long totalBytes, long[] keys) {
+        compress(root, totalBytes, ROOT_MARKER, keys);
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            digest[i] = (byte) (root[0] >>> (56 - 8 * i));
+            digest[8 + i] = (byte) (root[1] >>> (56 - 8 * i));
+        }
+        return digest;
+    }
+
+    // Davies-Meyer on both lanes, the 128-bit message block (high, low) is the key
+    private static void compress(long[] node, long high, long low, long[] keys) {
+        keys[0] = high;
+        for (int round = 1; round < ROUNDS; round++) {
+            keys[round] = (high << (4 * round)) | (low >>> (64 - 4 * round));
+        }
+        keys[ROUNDS] = low;
+        long a = node[0];
+        long b = node[1];
+        node[0] = ENGINE.encryptBlock(a, keys) ^ a;
+        node[1] = ENGINE.encryptBlock(b, keys) ^ b;
+    }
+
+    private static long readLong(byte[] data, int off) {
+        long value = 0;
+        for (int i = off; i < off + 8; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return value;
+    }
+
+    // Hashes leaf index into node, with keys as scratch
+    private interface LeafHasher {
+        void hash(long index, long[] node, long[] keys);
+    }
+
+    // Value of the subtree over the leaves [from, to)
+    private static final class TreeTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final transient LeafHasher leaves;
+
+        TreeTask(long from, long to, LeafHasher leaves) {
+            this.from = from;
+            this.to = to;
+            this.leaves = leaves;
+        }
+
+        @Override
+        protected long[] compute() {
+            long[] keys = new long[ROUNDS + 1];
+            long[] node = new long[2];
+            if (to - from == 1) {
+                leaves.hash(from, node, keys);
+                return node;
+            }
+            // Largest power of two smaller than the number of leaves, the shape of the streaming stack
+            long split = from + Long.highestOneBit(to - from - 1);
+            TreeTask left = new TreeTask(from, split, leaves);
+            left.fork();
+            long[] right = new TreeTask(split, to, leaves).compute();
+            long[] leftNode = left.join();
+            parent(leftNode[0], leftNode[1], right[0], right[1], node, keys);
+            return node;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java SPNHash file...");
+            System.exit(2);
+        }
+        HexFormat hex = HexFormat.of();
+        for (String name : args) {
+            System.out.println(hex.formatHex(hash(Path.of(name))) + "  " + name);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Cache of expanded keys for many tenants
+ *
+ * Maps key IDs to immutable SPNExpandedKey instances, so the round keys and codebooks of a
+ * key are computed once and shared by all threads. The cache is split into segments, each
+ * with its own lock and LRU order, so lookups for different keys rarely wait for each other.
+ * The entry and memory limits hold for the whole keyring: as soon as a new key exceeds one of
+ * them, the segments give up their least recently used key in turn until both hold again. The
+ * order of eviction is therefore LRU within a segment and round robin across the segments,
+ * and concurrent inserts may exceed the limits for the moment until their evictions finish.
+ *
+ * Keys are built outside of the segment lock. If two threads miss the same key at the same
+ * time both build it, but only the first instance is kept.
+ *
+ * An optional SPNCodebookStore backs the cache: keys it contains use its mapped tables instead
+ * of computing codebooks on the heap, so they are set up without any table computation and
+ * hardly count against the memory limit. Keys without codebooks run through a class generated
+ * for the key by SPNCipherCompiler, whose cache outlives evictions from the keyring.
+ *
+ * Key IDs never leave the keyring: lookup events record a fingerprint of the ID, a truncated
+ * HMAC with a random secret of the keyring. Callers whose natural ID would be the key itself
+ * pass the key with get(keyId, key) and use fingerprint(key) as the ID.
+ */
+public class SPNKeyring {
+    private static final int SEGMENTS = 16;
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Snapshot of the cache statistics
+     */
+    public record Stats(long hits, long misses, long evictions, long entries, long memoryBytes) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d evictions=%d entries=%d memory=%d bytes hitRate=%.3f",
+                hits, misses, evictions, entries, memoryBytes, hitRate());
+        }
+    }
+
+    private final Function<String, int[]> keyLoader;
+    private final SPNCodebookStore store;
+    private final boolean codebooks;
+    // Generates the classes of keys without codebooks, null if every key gets codebooks
+    private final SPNCipherCompiler compiler;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntries;
+    private final long maxBytes;
+    private final AtomicInteger entryCount = new AtomicInteger();
+    private final AtomicLong byteCount = new AtomicLong();
+    // Segment that gives up its least recently used key next
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final SecretKeySpec fingerprintSecret;
+
+    /**
+     * @param keyLoader Returns the key (eight 4-bit values) for a key ID, called on every miss
+     * @param maxEntries Maximum number of cached keys
+     * @param maxBytes Maximum approximate memory of all cached keys
+     * @param codebooks Whether the cached keys include the complete codebooks (256 KB per key)
+     */
+    public SPNKeyring(Function<String, int[]> keyLoader, int maxEntries, long maxBytes, boolean codebooks) {
+        this(keyLoader, null, maxEntries, maxBytes, codebooks);
+    }
+
+    /**
+     * @param keyLoader Returns the key (eight 4-bit values) for a key ID, called on every miss
+     * @param store Codebooks used for the keys it contains, may be null. The keyring does not
+     *              close it, it must stay open as long as the keyring is used.
+     * @param maxEntries Maximum number of cached keys
+     * @param maxBytes Maximum approximate memory of all cached keys
+     * @param codebooks Whether keys missing in the store get codebooks on the heap (256 KB per key)
+     */
+    public SPNKeyring(Function<String, int[]> keyLoader, SPNCodebookStore store, int maxEntries, long maxBytes,
+                      boolean codebooks) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.keyLoader = keyLoader;
+        this.store = store;
+        this.codebooks = codebooks;
+        this.compiler = codebooks ? null : new SPNCipherCompiler(maxEntries);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.fingerprintSecret = new SecretKeySpec(secret, FINGERPRINT_ALGORITHM);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Keyring for callers that pass the key with every lookup, see get(String, int[])
+     */
+    public SPNKeyring(int maxEntries, long maxBytes, boolean codebooks) {
+        this(keyId -> null, maxEntries, maxBytes, codebooks);
+    }
+
+    /**
+     * Returns the expanded key for a key ID, expanding and caching it on the first use
+     *
+     * @throws IllegalArgumentException if the loader does not know the key ID
+     */
+    public SPNExpandedKey get(String keyId) {
+        return get(keyId, keyLoader);
+    }
+
+    /**
+     * Returns the expanded key for a key ID, expanding the given key on the first use
+     *
+     * @param keyId ID of the key, e.g. fingerprint(key)
+     * @param key The key (eight 4-bit values)
+     */
+    public SPNExpandedKey get(String keyId, int[] key) {
+        int packed = SPNExpandedKey.pack(key);
+        SPNExpandedKey expanded = get(keyId, id -> key);
+        // Guards against a fingerprint collision, which must never return the cipher of another key
+        return expanded.getKey() == packed ? expanded : expand(packed);
+    }
+
+    /**
+     * Non-reversible ID of a key for this keyring: HMAC-SHA256 with a random secret of the
+     * keyring, truncated to 64 bits, in hex
+     */
+    public String fingerprint(int[] key) {
+        int packed = SPNExpandedKey.pack(key);
+        return fingerprint(new byte[]{(byte) (packed >>> 24), (byte) (packed >>> 16), (byte) (packed >>> 8), (byte) packed});
+    }
+
+    private String fingerprint(byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(fingerprintSecret);
+            return HexFormat.of().formatHex(mac.doFinal(data), 0, 8);
+        } catch (GeneralSecurityException e) {
+            // Every JDK provides HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SPNExpandedKey get(String keyId, Function<String, int[]> loader) {
+        SPNEvents.KeyCacheLookup event = SPNEvents.begin(SPNEvents.KeyCacheLookup::new);
+        Segment segment = segmentFor(keyId);
+        SPNExpandedKey expanded = segment.get(keyId);
+        boolean hit = expanded != null;
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+            int[] key = loader.apply(keyId);
+            if (key == null) {
+                throw new IllegalArgumentException("Unknown key ID");
+            }
+            SPNExpandedKey built = expand(SPNExpandedKey.pack(key));
+            expanded = segment.putIfAbsent(keyId, built);
+            if (expanded == built) {
+                evict(keyId);
+            }
+        }
+        if (SPNEvents.end(event)) {
+            event.keyFingerprint = fingerprint(keyId.getBytes(StandardCharsets.UTF_8));
+            event.hit = hit;
+            event.commit();
+        }
+        return expanded;
+    }
+
+    // Mapped codebooks of the store if it has the key, otherwise computed ones or a generated class
+    private SPNExpandedKey expand(int key) {
+        SPNBlockCipher mapped = store != null ? store.get(key) : null;
+        if (mapped != null) {
+            return new SPNExpandedKey(key, mapped);
+        }
+        return codebooks ? new SPNExpandedKey(key, true) : new SPNExpandedKey(key, compiler);
+    }
+
+    /**
+     * Removes a key, e.g. after it was rotated
+     */
+    public void invalidate(String keyId) {
+        segmentFor(keyId).remove(keyId);
+    }
+
+    // Removes least recently used keys until the limits hold again, the new key always stays
+    private void evict(String newKeyId) {
+        int unsuccessful = 0;
+        while ((entryCount.get() > maxEntries || byteCount.get() > maxBytes) && unsuccessful < SEGMENTS) {
+            Segment segment = segments[Math.floorMod(evictionCursor.getAndIncrement(), SEGMENTS)];
+            unsuccessful = segment.removeEldest(newKeyId) ? 0 : unsuccessful + 1;
+        }
+    }
+
+    public Stats stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                entries += segment.entries.size();
+                bytes += segment.bytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries, bytes);
+    }
+
+    private Segment segmentFor(String keyId) {
+        int hash = keyId.hashCode();
+        // Spread the higher bits, String hashes of similar IDs differ mostly in the low bits
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    // One LRU ordered part of the cache, guarded by its own lock
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<String, SPNExpandedKey> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+
+        SPNExpandedKey get(String keyId) {
+            lock.lock();
+            try {
+                // With access order this also moves the key to the most recently used position
+                return entries.get(keyId);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        SPNExpandedKey putIfAbsent(String keyId, SPNExpandedKey expanded) {
+            lock.lock();
+            try {
+                SPNExpandedKey existing = entries.get(keyId);
+                if (existing != null) {
+                    return existing;
+                }
+                entries.put(keyId, expanded);
+                bytes += expanded.memoryBytes();
+                entryCount.incrementAndGet();
+                byteCount.addAndGet(expanded.memoryBytes());
+                return expanded;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String keyId) {
+            lock.lock();
+            try {
+                SPNExpandedKey removed = entries.remove(keyId);
+                if (removed != null) {
+                    removed(removed);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Removes the least recently used key unless it is the given one, returns whether a key was removed
+        boolean removeEldest(String keptKeyId) {
+            lock.lock();
+            try {
+                var iterator = entries.entrySet().iterator();
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                var eldest = iterator.next();
+                if (eldest.getKey().equals(keptKeyId)) {
+                    return false;
+                }
+                iterator.remove();
+                removed(eldest.getValue());
+                evictions.increment();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removed(SPNExpandedKey expanded) {
+            bytes -= expanded.memoryBytes();
+            entryCount.decrementAndGet();
+            byteCount.addAndGet(-expanded.memoryBytes());
+        }
+    }
+}
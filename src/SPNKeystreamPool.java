@@ -0,0 +1,292 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pool of precomputed CTR keystream for small messages
+ *
+ * Every key gets a ring buffer of keystream blocks for consecutive counters, starting at a
+ * random unused counter. A background thread keeps each ring filled between the low and the
+ * high watermark. Encrypting a message then only reserves the next counters and XORs the prepared
+ * keystream, the block cipher is not called on the request path.
+ *
+ * Reservation is a single CAS on an atomic position, so concurrent messages always get
+ * disjoint counter ranges without a lock; only registering the next lease locks the ring. A
+ * ring slot stores the counter sequence number together with the keystream block
+ * (sequence << 16 | block). If the producer has not reached a slot yet or has already
+ * overwritten it, the sequence does not match and the block is computed directly, so a slow
+ * producer costs latency but never correctness.
+ *
+ * The counters of a key are used at most once. A ring registers its counters with an
+ * SPNNonceService in leases of highWatermark blocks before it hands them out, so the pool never
+ * uses counters that another path of the process used with the same key ID, and the other
+ * paths never get the counters of the pool. When the next lease overlaps counters in use, or
+ * the ring has gone once around the 2^16 counters, the ring is dropped and the next message of
+ * the key starts a new ring at unused counters. When the nonce service finds no unused range
+ * anymore, the counter space of the key is exhausted and the key must be rotated. If the pool
+ * already holds maxKeys rings, a message of another key gets a registered range of its own and
+ * is encrypted directly.
+ *
+ * The producer thread runs from start() to close(). Without it every block is computed on the
+ * request path, which is still correct.
+ */
+public class SPNKeystreamPool implements AutoCloseable {
+    private static final long COUNTERS = 1 << 16;
+
+    /**
+     * Snapshot of the pool statistics
+     */
+    public record Stats(long prefetchedBlocks, long computedBlocks, long producedBlocks, int keys) {
+        public double prefetchRate() {
+            long blocks = prefetchedBlocks + computedBlocks;
+            return blocks == 0 ? 0 : (double) prefetchedBlocks / blocks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("prefetched=%d computed=%d produced=%d keys=%d prefetchRate=%.3f",
+                prefetchedBlocks, computedBlocks, producedBlocks, keys, prefetchRate());
+        }
+    }
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int capacity;
+    private final int maxKeys;
+    private final SPNNonceService nonces;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder producedBlocks = new LongAdder();
+    private volatile Thread producer;
+    private volatile boolean running = true;
+
+    /**
+     * Pool that registers its counters with SPNNonceService.shared()
+     */
+    public SPNKeystreamPool(int lowWatermark, int highWatermark, int maxKeys) {
+        this(lowWatermark, highWatermark, maxKeys, SPNNonceService.shared());
+    }
+
+    /**
+     * @param lowWatermark The producer refills a ring as soon as fewer blocks are prepared
+     * @param highWatermark Number of blocks the producer prepares ahead per key, also the size
+     *                      of the counter leases
+     * @param maxKeys Maximum number of rings
+     * @param nonces Tracks the used counters of every key, the key IDs of the pool are its IDs
+     */
+    public SPNKeystreamPool(int lowWatermark, int highWatermark, int maxKeys, SPNNonceService nonces) {
+        if (lowWatermark < 0 || highWatermark < 1 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high and high > 0");
+        }
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("At least one key is required");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxKeys = maxKeys;
+        this.nonces = nonces;
+        // Power of two, so the slot of a sequence number is a mask operation
+        int highestBit = Integer.highestOneBit(highWatermark);
+        this.capacity = highestBit == highWatermark ? highWatermark : highestBit << 1;
+    }
+
+    /**
+     * Starts the producer thread
+     *
+     * @throws IllegalStateException if the pool was already started or closed
+     */
+    public synchronized void start() {
+        if (producer != null || !running) {
+            throw new IllegalStateException("Pool was already started or closed");
+        }
+        Thread thread = new Thread(this::runProducer, "spn-keystream-producer");
+        thread.setDaemon(true);
+        producer = thread;
+        thread.start();
+    }
+
+    /**
+     * Encrypts or decrypts whole blocks in place with the next unused counters of a key
+     *
+     * @param keyId The key, the ring is created on its first use
+     * @param cipher The cipher of the key, used by the producer and when no block is prepared
+     * @param data Data to transform
+     * @param off Offset of the first byte
+     * @param len Number of bytes, must be even
+     * @return The counter of the first block, i.e. the IV to store with the message
+     * @throws SPNNonceService.CounterReuseException if the counter space of the key is
+     *                                               exhausted; data is not modified then
+     */
+    public int xor(String keyId, SPNBlockCipher cipher, byte[] data, int off, int len) {
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Length must be a multiple of the block size");
+        }
+        int blocks = len / 2;
+        Ring ring;
+        long first;
+        while (true) {
+            ring = rings.computeIfAbsent(keyId, id -> {
+                if (rings.size() >= maxKeys) {
+                    return null;
+                }
+                // The first lease, throws if the key has no unused range left
+                int lease = Math.max(highWatermark, blocks);
+                return new Ring(cipher, nonces.nextIv(id, lease), lease);
+            });
+            if (ring == null) {
+                // Pool full: a registered range of its own, computed on the request path
+                int iv = nonces.nextIv(keyId, blocks);
+                cipher.ctrXor(iv, 0, data, off, len);
+                computed.add(blocks);
+                return iv;
+            }
+            first = ring.reserve(keyId, blocks);
+            if (first >= 0) {
+                break;
+            }
+            // The next counters of the ring are in use, the next attempt starts a new ring
+            rings.remove(keyId, ring);
+        }
+        if (first + blocks == COUNTERS) {
+            // Drained: the blocks still in the ring are only read by the calls that reserved them
+            rings.remove(keyId, ring);
+        }
+        Thread thread = producer;
+        if (thread != null && ring.produced - (first + blocks) < lowWatermark) {
+            LockSupport.unpark(thread);
+        }
+
+        int hits = 0;
+        for (int i = 0; i < blocks; i++) {
+            long sequence = first + i;
+            long slot = ring.slots.get((int) (sequence & (capacity - 1)));
+            int keystream;
+            if (slot >>> 16 == sequence) {
+                keystream = (int) (slot & 0xFFFF);
+                hits++;
+            } else {
+                keystream = cipher.encryptBlock(ring.counter(sequence));
+            }
+            data[off + 2 * i] ^= (byte) (keystream >>> 8);
+            data[off + 2 * i + 1] ^= (byte) keystream;
+        }
+        prefetched.add(hits);
+        computed.add(blocks - hits);
+        return ring.counter(first);
+    }
+
+    /**
+     * Drops the ring of a key ID after the key behind it was replaced. The used counters are
+     * tracked by the nonce service, reset them there as well.
+     */
+    public void invalidate(String keyId) {
+        rings.remove(keyId);
+    }
+
+    public Stats stats() {
+        return new Stats(prefetched.sum(), computed.sum(), producedBlocks.sum(), rings.size());
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        Thread thread = producer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Refills all rings that fell below the low watermark, sleeps when there is nothing to do
+    private void runProducer() {
+        while (running) {
+            boolean worked = false;
+            for (Ring ring : rings.values()) {
+                worked |= ring.refill();
+            }
+            if (!worked) {
+                LockSupport.parkNanos(this, 1_000_000);
+            }
+        }
+    }
+
+    // Keystream ring of one key
+    private final class Ring {
+        final SPNBlockCipher cipher;
+        final int firstCounter;
+        final AtomicLongArray slots = new AtomicLongArray(capacity);
+        // Sequence number of the next block handed out
+        final AtomicLong reserved = new AtomicLong();
+        // Sequence number of the next block the producer computes, only written by the producer
+        volatile long produced;
+        // Sequence numbers below are registered with the nonce service, only grows
+        volatile long claimed;
+
+        Ring(SPNBlockCipher cipher, int firstCounter, int claimed) {
+            this.cipher = cipher;
+            this.firstCounter = firstCounter;
+            this.claimed = claimed;
+            // No slot is valid initially, sequence -1 never matches
+            for (int i = 0; i < capacity; i++) {
+                slots.set(i, -1L);
+            }
+        }
+
+        int counter(long sequence) {
+            return (int) ((firstCounter + sequence) & 0xFFFF);
+        }
+
+        // Returns the first sequence number of the blocks, -1 if the ring cannot provide them
+        long reserve(String keyId, int blocks) {
+            while (true) {
+                long first = reserved.get();
+                long end = first + blocks;
+                if (end > claimed && !extend(keyId, end)) {
+                    return -1;
+                }
+                if (reserved.compareAndSet(first, end)) {
+                    return first;
+                }
+            }
+        }
+
+        // Registers leases after the claimed counters until end, fails on counters in use
+        private synchronized boolean extend(String keyId, long end) {
+            while (claimed < end) {
+                long lease = Math.min(Math.max(highWatermark, end - claimed), COUNTERS - claimed);
+                if (claimed + lease < end) {
+                    return false;
+                }
+                try {
+                    if (!nonces.register(keyId, counter(claimed), (int) lease)) {
+                        return false;
+                    }
+                } catch (SPNNonceService.CounterReuseException e) {
+                    return false;
+                }
+                claimed += lease;
+            }
+            return true;
+        }
+
+        boolean refill() {
+            long start = Math.max(produced, reserved.get());
+            if (start - reserved.get() >= lowWatermark && produced > 0) {
+                return false;
+            }
+            long target = Math.min(reserved.get() + highWatermark, COUNTERS);
+            for (long sequence = start; sequence < target; sequence++) {
+                int block = cipher.encryptBlock(counter(sequence));
+                slots.lazySet((int) (sequence & (capacity - 1)), (sequence << 16) | block);
+            }
+            if (target > start) {
+                producedBlocks.add(target - start);
+                this.produced = target;
+            }
+            return target > start;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the cipher operations
+ *
+ * Metrics are only collected when the JVM is started with -Dspn.metrics=true. The switch is
+ * a static final constant, so with metrics disabled the JIT removes the instrumented code
+ * completely and the cipher runs exactly as fast as without instrumentation.
+ *
+ * Recording never allocates: calls, blocks and bytes are LongAdders, latencies go into
+ * histograms with one bucket per power of two nanoseconds.
+ *
+ * Every call is recorded once, by the outermost instrumented entry point: a CTR or a mode of
+ * SPNModes does not count the blocks it encrypts a second time as single block operations.
+ */
+public final class SPNMetrics {
+    /** Whether metrics are collected, fixed at startup */
+    public static final boolean ENABLED = Boolean.getBoolean("spn.metrics");
+
+    /**
+     * The measured cipher operation
+     */
+    public enum Operation { ENCRYPT, DECRYPT, CTR }
+
+    /**
+     * The API used: binary strings or byte arrays. Single int blocks take only a few nanoseconds
+     * and are counted as part of the byte operation that calls them.
+     */
+    public enum Mode { STRING, BYTES }
+
+    /**
+     * The mode of operation, BLOCK for a single block of the string API
+     */
+    public enum CipherMode { BLOCK, ECB, CBC, CFB, OFB, CTR }
+
+    private static final Series[][][] SERIES =
+        new Series[Operation.values().length][CipherMode.values().length][Mode.values().length];
+
+    static {
+        for (Series[][] byCipherMode : SERIES) {
+            for (Series[] byMode : byCipherMode) {
+                for (int mode = 0; mode < byMode.length; mode++) {
+                    byMode[mode] = new Series();
+                }
+            }
+        }
+    }
+
+    private SPNMetrics() {
+    }
+
+    /**
+     * Records one call, callers check ENABLED first so the time is not even measured when disabled
+     *
+     * @param operation The operation
+     * @param cipherMode The mode of operation
+     * @param mode The API that was called
+     * @param blocks Number of processed blocks
+     * @param bytes Number of processed bytes (0 for the string API)
+     * @param nanos Duration of the call
+     */
+    public static void record(Operation operation, CipherMode cipherMode, Mode mode, long blocks, long bytes, long nanos) {
+        Series series = SERIES[operation.ordinal()][cipherMode.ordinal()][mode.ordinal()];
+        series.calls.increment();
+        series.blocks.add(blocks);
+        series.bytes.add(bytes);
+        series.latency.record(nanos);
+    }
+
+    /**
+     * Exports all metrics that have been recorded so far in the Prometheus text format
+     */
+    public static String export() {
+        StringBuilder text = new StringBuilder();
+        text.append("# spn metrics ").append(ENABLED ? "enabled" : "disabled (start with -Dspn.metrics=true)")
+            .append('\n');
+        for (Operation operation : Operation.values()) {
+            for (CipherMode cipherMode : CipherMode.values()) {
+                for (Mode mode : Mode.values()) {
+                    Series series = SERIES[operation.ordinal()][cipherMode.ordinal()][mode.ordinal()];
+                    long calls = series.calls.sum();
+                    if (calls == 0) {
+                        continue;
+                    }
+                    String labels = "{op=\"" + operation.name().toLowerCase()
+                        + "\",cipher=\"" + cipherMode.name().toLowerCase()
+                        + "\",mode=\"" + mode.name().toLowerCase() + "\"";
+                    text.append("spn_calls_total").append(labels).append("} ").append(calls).append('\n');
+                    text.append("spn_blocks_total").append(labels).append("} ").append(series.blocks.sum()).append('\n');
+                    text.append("spn_bytes_total").append(labels).append("} ").append(series.bytes.sum()).append('\n');
+                    series.latency.export(text, "spn_latency_nanos", labels);
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Resets all metrics, e.g. between benchmark runs
+     */
+    public static void reset() {
+        for (Series[][] byCipherMode : SERIES) {
+            for (Series[] byMode : byCipherMode) {
+                for (Series series : byMode) {
+                    series.calls.reset();
+                    series.blocks.reset();
+                    series.bytes.reset();
+                    series.latency.reset();
+                }
+            }
+        }
+    }
+
+    // All metrics of one operation, mode of operation and API
+    private static final class Series {
+        final LongAdder calls = new LongAdder();
+        final LongAdder blocks = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Histogram with logarithmic buckets: bucket i counts durations in [2^(i-1), 2^i) nanoseconds
+     */
+    static final class LatencyHistogram {
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        LatencyHistogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            sum.reset();
+            max.reset();
+        }
+
+        void export(StringBuilder text, String name, String labels) {
+            long cumulative = 0;
+            int highest = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i].sum() > 0) {
+                    highest = i;
+                }
+            }
+            for (int i = 0; i <= highest; i++) {
+                cumulative += buckets[i].sum();
+                // Upper bound of bucket i is 2^i - 1, so "le" is inclusive like in Prometheus
+                text.append(name).append("_bucket").append(labels).append(",le=\"").append((1L << i) - 1)
+                    .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_bucket").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum").append(labels).append("} ").append(sum.sum()).append('\n');
+            text.append(name).append("_count").append(labels).append("} ").append(cumulative).append('\n');
+            text.append(name).append("_max").append(labels).append("} ").append(max.get()).append('\n');
+        }
+    }
+}
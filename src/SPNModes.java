@@ -0,0 +1,335 @@
+import java.util.stream.IntStream;
+
+/**
+ * Block cipher modes of operation on top of SPNBlockCipher
+ *
+ * All modes work in place on byte ranges, every two bytes form one block (big endian) like in
+ * SPNBlockCipher.ctrXor. The IV is a single 16-bit block. CFB and OFB use full 16-bit segments.
+ *
+ * Where a mode allows it, large ranges are split into chunks that are processed in parallel:
+ * - ECB encryption and decryption, CTR
+ * - CBC and CFB decryption, every block only depends on two ciphertext blocks
+ * - OFB: the keystream chain is serial, it is computed first in a tight loop and then applied
+ *   in parallel. Streams can compute it ahead of the data with Stream.precompute.
+ * CBC and CFB encryption are inherently serial.
+ *
+ * The byte[] methods add and remove the usual padding (a '1' bit followed by '0' bits up to the
+ * next block boundary). The range methods and streams expect whole blocks and do not pad.
+ */
+public final class SPNModes {
+    /**
+     * Supported modes of operation
+     */
+    public enum Mode { ECB, CBC, CFB, OFB, CTR }
+
+    // Ranges smaller than this are always processed by the calling thread
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+    private static final int CHUNK_BYTES = 1 << 14;
+    private static final int OFB_SEGMENT_BLOCKS = 1 << 16;
+
+    private SPNModes() {
+    }
+
+    /**
+     * Pads and encrypts a message
+     *
+     * @param cipher The block cipher
+     * @param mode The mode of operation
+     * @param iv Initial 16-bit block, ignored in ECB mode
+     * @param plaintext The message, not modified
+     * @return The padded ciphertext
+     */
+    public static byte[] encrypt(SPNBlockCipher cipher, Mode mode, int iv, byte[] plaintext) {
+        // Padding: a '1' bit followed by '0' bits up to the next block boundary
+        byte[] data = new byte[(plaintext.length + 2) & ~1];
+        System.arraycopy(plaintext, 0, data, 0, plaintext.length);
+        data[plaintext.length] = (byte) 0x80;
+        encrypt(cipher, mode, iv, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Decrypts a message and removes the padding
+     *
+     * @throws IllegalArgumentException if the length or the padding is invalid (e.g. wrong key)
+     */
+    public static byte[] decrypt(SPNBlockCipher cipher, Mode mode, int iv, byte[] ciphertext) {
+        if (ciphertext.length < 2 || (ciphertext.length & 1) != 0) {
+            throw new IllegalArgumentException("Ciphertext length is not a multiple of the block size");
+        }
+        byte[] data = ciphertext.clone();
+        decrypt(cipher, mode, iv, data, 0, data.length);
+        int end = data.length;
+        if ((data[end - 1] & 0xFF) == 0x80) {
+            end -= 1;
+        } else if ((data[end - 2] & 0xFF) == 0x80 && data[end - 1] == 0) {
+            end -= 2;
+        } else {
+            throw new IllegalArgumentException("Invalid padding, wrong key or damaged ciphertext");
+        }
+        byte[] plaintext = new byte[end];
+        System.arraycopy(data, 0, plaintext, 0, end);
+        return plaintext;
+    }
+
+    /**
+     * Encrypts whole blocks in place
+     *
+     * @param len Number of bytes, must be even
+     */
+    public static void encrypt(SPNBlockCipher cipher, Mode mode, int iv, byte[] data, int off, int len) {
+        Stream stream = new Stream(cipher, mode, iv, true);
+        stream.update(data, off, len);
+    }
+
+    /**
+     * Decrypts whole blocks in place
+     *
+     * @param len Number of bytes, must be even
+     */
+    public static void decrypt(SPNBlockCipher cipher, Mode mode, int iv, byte[] data, int off, int len) {
+        Stream stream = new Stream(cipher, mode, iv, false);
+        stream.update(data, off, len);
+    }
+
+    /**
+     * Starts a streaming encryption, the data can then be passed in ranges of any even length
+     */
+    public static Stream encryptor(SPNBlockCipher cipher, Mode mode, int iv) {
+        return new Stream(cipher, mode, iv, true);
+    }
+
+    /**
+     * Starts a streaming decryption
+     */
+    public static Stream decryptor(SPNBlockCipher cipher, Mode mode, int iv) {
+        return new Stream(cipher, mode, iv, false);
+    }
+
+    /**
+     * Encryption or decryption of a message that arrives in parts
+     *
+     * Keeps the chaining value (CBC, CFB), the OFB state or the CTR position between the calls
+     * to update, so a message processed in several parts gives the same result as in one call.
+     * Not thread safe, but a single update may use several threads internally.
+     */
+    public static final class Stream {
+        private final SPNBlockCipher cipher;
+        private final Mode mode;
+        private final boolean encrypt;
+        // Previous ciphertext block (CBC, CFB), last OFB output or IV (CTR)
+        private int chain;
+        private long blocks;
+        // OFB keystream computed ahead of the data: ahead[aheadPosition..aheadLength)
+        private int[] ahead = new int[0];
+        private int aheadPosition;
+        private int aheadLength;
+
+        private Stream(SPNBlockCipher cipher, Mode mode, int iv, boolean encrypt) {
+            if (iv < 0 || iv > 0xFFFF) {
+                throw new IllegalArgumentException("IV must be a 16-bit value");
+            }
+            this.cipher = cipher;
+            this.mode = mode;
+            this.encrypt = encrypt;
+            this.chain = iv;
+        }
+
+        /**
+         * Number of blocks processed so far
+         */
+        public long blocks() {
+            return blocks;
+        }
+
+        /**
+         * Computes the next OFB keystream blocks before the data arrives
+         *
+         * The OFB keystream does not depend on the data, so it can be generated while waiting
+         * for input. update then only has to XOR. Does nothing for the other modes.
+         *
+         * @param count Number of keystream blocks to keep ready
+         */
+        public void precompute(int count) {
+            if (mode != Mode.OFB || aheadLength - aheadPosition >= count) {
+                return;
+            }
+            int available = aheadLength - aheadPosition;
+            int[] keystream = ahead.length >= count ? ahead : new int[count];
+            System.arraycopy(ahead, aheadPosition, keystream, 0, available);
+            int state = chain;
+            for (int i = available; i < count; i++) {
+                state = cipher.encryptBlock(state);
+                keystream[i] = state;
+            }
+            chain = state;
+            ahead = keystream;
+            aheadPosition = 0;
+            aheadLength = count;
+        }
+
+        /**
+         * Encrypts or decrypts the next part of the message in place
+         *
+         * @param len Number of bytes, must be even
+         */
+        public void update(byte[] data, int off, int len) {
+            if ((len & 1) != 0) {
+                throw new IllegalArgumentException("Length must be a multiple of the block size");
+            }
+            long start = SPNMetrics.ENABLED ? System.nanoTime() : 0;
+            switch (mode) {
+                case ECB -> parallel(data, off, len, (from, to) -> ecb(data, from, to));
+                case CTR -> {
+                    if (blocks + len / 2 > SPNBlockCipher.MAX_CTR_BLOCKS) {
+                        throw new IllegalArgumentException("CTR messages are limited to " + SPNBlockCipher.MAX_CTR_BLOCKS
+                            + " blocks (" + SPNBlockCipher.MAX_CTR_BLOCKS * 2 / 1024 + " KiB), the counter would repeat");
+                    }
+                    // Same keystream as SPNBlockCipher.ctrXor, which would record the blocks a second time
+                    long first = chain + blocks;
+                    parallel(data, off, len, (from, to) -> ctr(data, from, to, (int) (first + (from - off) / 2)));
+                }
+                case CBC -> {
+                    if (encrypt) {
+                        chain = cbcEncrypt(data, off, off + len, chain);
+                    } else {
+                        chain = chainedDecrypt(data, off, len, chain, true);
+                    }
+                }
+                case CFB -> {
+                    if (encrypt) {
+                        chain = cfbEncrypt(data, off, off + len, chain);
+                    } else {
+                        chain = chainedDecrypt(data, off, len, chain, false);
+                    }
+                }
+                case OFB -> {
+                    // The keystream is generated in segments, so it never needs more memory than one segment
+                    for (int from = off; from < off + len; from += 2 * OFB_SEGMENT_BLOCKS) {
+                        int segment = Math.min(2 * OFB_SEGMENT_BLOCKS, off + len - from);
+                        precompute(segment / 2);
+                        int[] keystream = ahead;
+                        int first = aheadPosition;
+                        int segmentStart = from;
+                        parallel(data, from, segment,
+                            (chunkFrom, chunkTo) -> xor(data, chunkFrom, chunkTo, keystream, first + (chunkFrom - segmentStart) / 2));
+                        aheadPosition += segment / 2;
+                    }
+                }
+            }
+            blocks += len / 2;
+            if (SPNMetrics.ENABLED) {
+                SPNMetrics.record(encrypt ? SPNMetrics.Operation.ENCRYPT : SPNMetrics.Operation.DECRYPT,
+                    metricsMode(mode), SPNMetrics.Mode.BYTES, len / 2, len, System.nanoTime() - start);
+            }
+        }
+
+        private void ecb(byte[] data, int from, int to) {
+            for (int i = from; i < to; i += 2) {
+                int block = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                block = encrypt ? cipher.encryptBlock(block) : cipher.decryptBlock(block);
+                data[i] = (byte) (block >>> 8);
+                data[i + 1] = (byte) block;
+            }
+        }
+
+        private void ctr(byte[] data, int from, int to, int counter) {
+            for (int i = from; i < to; i += 2) {
+                int keystream = cipher.encryptBlock(counter & 0xFFFF);
+                data[i] ^= (byte) (keystream >>> 8);
+                data[i + 1] ^= (byte) keystream;
+                counter++;
+            }
+        }
+
+        private int cbcEncrypt(byte[] data, int from, int to, int previous) {
+            for (int i = from; i < to; i += 2) {
+                int block = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                previous = cipher.encryptBlock(block ^ previous);
+                data[i] = (byte) (previous >>> 8);
+                data[i + 1] = (byte) previous;
+            }
+            return previous;
+        }
+
+        private int cfbEncrypt(byte[] data, int from, int to, int previous) {
+            for (int i = from; i < to; i += 2) {
+                int block = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                previous = block ^ cipher.encryptBlock(previous);
+                data[i] = (byte) (previous >>> 8);
+                data[i + 1] = (byte) previous;
+            }
+            return previous;
+        }
+
+        // CBC and CFB decryption: plaintext block i depends only on ciphertext blocks i - 1 and i.
+        // Works in place, so the ciphertext block before every chunk is saved before any chunk
+        // starts. Returns the last ciphertext block as the chaining value for the next update.
+        private int chainedDecrypt(byte[] data, int off, int len, int previous, boolean cbc) {
+            if (len == 0) {
+                return previous;
+            }
+            int chunks = (len + CHUNK_BYTES - 1) / CHUNK_BYTES;
+            int[] chunkPrevious = new int[chunks];
+            chunkPrevious[0] = previous;
+            for (int chunk = 1; chunk < chunks; chunk++) {
+                int i = off + chunk * CHUNK_BYTES - 2;
+                chunkPrevious[chunk] = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+            }
+            int last = ((data[off + len - 2] & 0xFF) << 8) | (data[off + len - 1] & 0xFF);
+            IntStream chunkStream = IntStream.range(0, chunks);
+            if (len >= PARALLEL_THRESHOLD) {
+                chunkStream = chunkStream.parallel();
+            }
+            chunkStream.forEach(chunk -> {
+                int from = off + chunk * CHUNK_BYTES;
+                int to = Math.min(from + CHUNK_BYTES, off + len);
+                int chained = chunkPrevious[chunk];
+                for (int i = from; i < to; i += 2) {
+                    int block = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                    int plain = cbc ? cipher.decryptBlock(block) ^ chained : block ^ cipher.encryptBlock(chained);
+                    data[i] = (byte) (plain >>> 8);
+                    data[i + 1] = (byte) plain;
+                    chained = block;
+                }
+            });
+            return last;
+        }
+    }
+
+    private static SPNMetrics.CipherMode metricsMode(Mode mode) {
+        return switch (mode) {
+            case ECB -> SPNMetrics.CipherMode.ECB;
+            case CBC -> SPNMetrics.CipherMode.CBC;
+            case CFB -> SPNMetrics.CipherMode.CFB;
+            case OFB -> SPNMetrics.CipherMode.OFB;
+            case CTR -> SPNMetrics.CipherMode.CTR;
+        };
+    }
+
+    // Part of a range that is processed by one task, from and to are byte positions
+    private interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    // Splits a range into chunks of whole blocks and processes them in parallel if it is large enough
+    private static void parallel(byte[] data, int off, int len, ChunkTask task) {
+        if (len < PARALLEL_THRESHOLD) {
+            task.run(off, off + len);
+            return;
+        }
+        int chunks = (len + CHUNK_BYTES - 1) / CHUNK_BYTES;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int from = off + chunk * CHUNK_BYTES;
+            task.run(from, Math.min(from + CHUNK_BYTES, off + len));
+        });
+    }
+
+    private static void xor(byte[] data, int from, int to, int[] keystream, int position) {
+        for (int i = from; i < to; i += 2) {
+            int block = keystream[position++];
+            data[i] ^= (byte) (block >>> 8);
+            data[i + 1] ^= (byte) block;
+        }
+    }
+}
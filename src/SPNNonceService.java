@@ -0,0 +1,229 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Random IVs for CTR mode with detection of reused counters
+ *
+ * In CTR mode a message with IV v and n blocks uses the counters v .. v + n - 1 (modulo 2^16).
+ * Two messages of the same key must never share a counter, otherwise the XOR of their
+ * ciphertexts reveals the XOR of their plaintexts. With only 2^16 counters per key this
+ * happens quickly with random IVs, so the service remembers every used counter.
+ *
+ * The used counters of a key are an exact bitmap of 2^16 bits (8 KB). Ranges are claimed word
+ * by word with atomic updates of the bitmap, so threads never wait for each other and there
+ * is no global lock. If a range overlaps counters in use, the bits set so far are released
+ * again and the claim fails.
+ *
+ * IVs come from per-thread generators seeded by SecureRandom. The IV only has to be unique,
+ * not secret, so a fast generator is sufficient and rates of millions of IVs per second are
+ * possible.
+ *
+ * Every CTR entry point of the process (GUI, SPNCli, SPNBatch, SPNPipeline, SPNService)
+ * takes its IVs from the shared() instance, so messages and files of the same key never share
+ * counters, no matter which path encrypted them. The bitmaps live in memory, so the tracking
+ * covers one process.
+ */
+public class SPNNonceService {
+    private static final int COUNTERS = 1 << 16;
+    private static final int ATTEMPTS = 32;
+    private static final String KEY_ID_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom SEED = new SecureRandom();
+    private static final ThreadLocal<SplittableRandom> RANDOM =
+        ThreadLocal.withInitial(() -> new SplittableRandom(SEED.nextLong()));
+
+    /**
+     * What register does with an IV whose counters are already in use
+     */
+    public enum Policy {
+        /** Throw an IllegalStateException */
+        REFUSE,
+        /** Accept the IV, register returns false */
+        WARN
+    }
+
+    /**
+     * Thrown when the counters of a message are already in use or no unused range is left
+     */
+    public static final class CounterReuseException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        CounterReuseException(String message) {
+            super(message);
+        }
+    }
+
+    private static final SPNNonceService SHARED = new SPNNonceService(Policy.REFUSE);
+
+    private final Policy policy;
+    private final Map<String, AtomicLongArray> used = new ConcurrentHashMap<>();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+    private final SecretKeySpec keyIdSecret;
+
+    public SPNNonceService(Policy policy) {
+        this.policy = policy;
+        byte[] secret = new byte[32];
+        SEED.nextBytes(secret);
+        this.keyIdSecret = new SecretKeySpec(secret, KEY_ID_ALGORITHM);
+    }
+
+    /**
+     * The instance of the process with policy REFUSE, used by every CTR entry point
+     */
+    public static SPNNonceService shared() {
+        return SHARED;
+    }
+
+    /**
+     * Non-reversible ID of a key for this service: HMAC-SHA256 with a random secret, truncated
+     * to 64 bits, in hex. The same key in binary and hex notation gets the same ID.
+     *
+     * @param key The key (eight 4-bit values)
+     */
+    public String keyId(int[] key) {
+        int packed = SPNExpandedKey.pack(key);
+        try {
+            Mac mac = Mac.getInstance(KEY_ID_ALGORITHM);
+            mac.init(keyIdSecret);
+            byte[] digest = mac.doFinal(new byte[]{(byte) (packed >>> 24), (byte) (packed >>> 16), (byte) (packed >>> 8), (byte) packed});
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(KEY_ID_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Returns a random IV without tracking, e.g. for previews that are never sent
+     */
+    public static int randomIv() {
+        return RANDOM.get().nextInt(COUNTERS);
+    }
+
+    /**
+     * Returns a random IV whose counters were never used with the key and marks them as used
+     *
+     * @param keyId The key the message is encrypted with
+     * @param blocks Number of blocks of the message
+     * @throws CounterReuseException if no free range was found, the key should be rotated
+     */
+    public int nextIv(String keyId, int blocks) {
+        checkBlocks(blocks);
+        AtomicLongArray bitmap = bitmap(keyId);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            int iv = randomIv();
+            if (claim(bitmap, iv, blocks)) {
+                issued.increment();
+                return iv;
+            }
+            collisions.increment();
+        }
+        throw new CounterReuseException("No unused counters found for key " + keyId + ", rotate the key");
+    }
+
+    /**
+     * Marks the counters of a message with a given IV as used
+     *
+     * @return true if the counters were unused, false if they overlap (policy WARN)
+     * @throws CounterReuseException if they overlap and the policy is REFUSE
+     */
+    public boolean register(String keyId, int iv, int blocks) {
+        checkBlocks(blocks);
+        if (iv < 0 || iv >= COUNTERS) {
+            throw new IllegalArgumentException("IV must be a 16-bit value");
+        }
+        AtomicLongArray bitmap = bitmap(keyId);
+        if (claim(bitmap, iv, blocks)) {
+            issued.increment();
+            return true;
+        }
+        collisions.increment();
+        if (policy == Policy.REFUSE) {
+            throw new CounterReuseException("Counters of IV " + iv + " are already in use for key " + keyId);
+        }
+        update(bitmap, iv, blocks, true);
+        return false;
+    }
+
+    /**
+     * Number of counters of a key that are in use
+     */
+    public int usedCounters(String keyId) {
+        AtomicLongArray bitmap = used.get(keyId);
+        if (bitmap == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < bitmap.length(); i++) {
+            count += Long.bitCount(bitmap.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the used counters of a key, only allowed after the key was rotated
+     */
+    public void reset(String keyId) {
+        used.remove(keyId);
+    }
+
+    public long issued() {
+        return issued.sum();
+    }
+
+    public long collisions() {
+        return collisions.sum();
+    }
+
+    private AtomicLongArray bitmap(String keyId) {
+        return used.computeIfAbsent(keyId, id -> new AtomicLongArray(COUNTERS / 64));
+    }
+
+    private static void checkBlocks(int blocks) {
+        if (blocks < 1 || blocks > COUNTERS) {
+            throw new IllegalArgumentException("A message must have between 1 and 65536 blocks");
+        }
+    }
+
+    // Sets the bits of the counters iv .. iv + blocks - 1 word by word, releases them again on overlap
+    private static boolean claim(AtomicLongArray bitmap, int iv, int blocks) {
+        int claimed = 0;
+        while (claimed < blocks) {
+            int counter = (iv + claimed) & (COUNTERS - 1);
+            int bit = counter & 63;
+            int count = Math.min(64 - bit, blocks - claimed);
+            long mask = (count == 64 ? -1L : (1L << count) - 1) << bit;
+            long previous = bitmap.getAndAccumulate(counter >>> 6, mask, (word, bits) -> (word & bits) == 0 ? word | bits : word);
+            if ((previous & mask) != 0) {
+                update(bitmap, iv, claimed, false);
+                return false;
+            }
+            claimed += count;
+        }
+        return true;
+    }
+
+    // Sets or clears the bits of the counters iv .. iv + blocks - 1
+    private static void update(AtomicLongArray bitmap, int iv, int blocks, boolean set) {
+        int done = 0;
+        while (done < blocks) {
+            int counter = (iv + done) & (COUNTERS - 1);
+            int bit = counter & 63;
+            int count = Math.min(64 - bit, blocks - done);
+            long mask = (count == 64 ? -1L : (1L << count) - 1) << bit;
+            if (set) {
+                bitmap.getAndAccumulate(counter >>> 6, mask, (word, bits) -> word | bits);
+            } else {
+                bitmap.getAndAccumulate(counter >>> 6, ~mask, (word, bits) -> word & bits);
+            }
+            done += count;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Staged CTR encryption of files: read, keystream, XOR and write run concurrently
+ *
+ * A file is cut into segments of a fixed size. Every segment passes four stages, each with
+ * its own configurable number of worker threads:
+ * - read: positional read of the segment from the source channel (the last one gets the padding)
+ * - keystream: encrypts the counters of the segment into a keystream buffer
+ * - xor: XORs the keystream into the data (on decryption the last segment loses its padding)
+ * - write: positional write into the target channel
+ *
+ * The stages are connected by lock-free queues (ConcurrentLinkedQueue). Only a fixed pool of
+ * segments exists, so the queues are bounded by the pool size: when the writers fall behind
+ * the readers find no free segment and wait, which is the backpressure. Since every segment
+ * knows its position, segments may overtake each other between the stages and the workers of
+ * a stage need no coordination.
+ *
+ * Input and output use the container format of SPNFileCipher without compression, with the
+ * same limit of SPNBlockCipher.MAX_CTR_BLOCKS blocks per container. For every
+ * stage the busy and waiting times of its workers are measured, the report shows the
+ * utilization, i.e. which stage limits the throughput.
+ *
+ * Usage: java SPNPipeline (encrypt|decrypt) [--key key] source target [segment KB] [read keystream xor write workers]
+ */
+public class SPNPipeline {
+    /** The stages in processing order */
+    public enum Stage { READ, KEYSTREAM, XOR, WRITE }
+
+    /**
+     * Number of worker threads per stage
+     */
+    public record Workers(int read, int keystream, int xor, int write) {
+        public Workers {
+            if (read < 1 || keystream < 1 || xor < 1 || write < 1) {
+                throw new IllegalArgumentException("Every stage needs at least one worker");
+            }
+        }
+
+        int of(Stage stage) {
+            return switch (stage) {
+                case READ -> read;
+                case KEYSTREAM -> keystream;
+                case XOR -> xor;
+                case WRITE -> write;
+            };
+        }
+    }
+
+    /**
+     * Times of one stage, summed over its workers
+     */
+    public record StageStats(Stage stage, int workers, long segments, long busyNanos, long waitNanos) {
+        /**
+         * Fraction of the wall clock time the workers of the stage were processing segments
+         */
+        public double utilization(long wallNanos) {
+            return wallNanos == 0 ? 0 : (double) busyNanos / ((double) wallNanos * workers);
+        }
+    }
+
+    /**
+     * Result of a run
+     */
+    public record Report(long bytes, long wallNanos, List<StageStats> stages) {
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("%d bytes in %.3f s (%.1f MB/s)%n", bytes, wallNanos / 1e9,
+                bytes / Math.max(wallNanos / 1e9, 1e-9) / 1e6));
+            for (StageStats stats : stages) {
+                text.append(String.format("  %-9s %2d workers  %6d segments  utilization %5.1f %%  waiting %.3f s%n",
+                    stats.stage(), stats.workers(), stats.segments(), 100 * stats.utilization(wallNanos),
+                    stats.waitNanos() / 1e9));
+            }
+            return text.toString();
+        }
+    }
+
+    private static final long WAIT_NANOS = 50_000;
+
+    private final SPNBlockCipher cipher;
+    private final int segmentSize;
+    private final int segmentCount;
+    private final Workers workers;
+
+    /**
+     * Pipeline with 8 KiB segments, 4 segments per worker and one worker per stage, except
+     * for the keystream, which gets all remaining cores
+     *
+     * A container holds at most 128 KiB, so the segments are small enough that even the
+     * largest file is spread over 16 segments and the stages overlap.
+     */
+    public SPNPipeline(SPNBlockCipher cipher) {
+        this(cipher, 1 << 13, new Workers(1, Math.max(1, Runtime.getRuntime().availableProcessors() - 3), 1, 1));
+    }
+
+    public SPNPipeline(SPNBlockCipher cipher, int segmentSize, Workers workers) {
+        this(cipher, segmentSize, 4 * (workers.read() + workers.keystream() + workers.xor() + workers.write()), workers);
+    }
+
+    /**
+     * @param cipher The block cipher of the keystream, e.g. an SPNExpandedKey with codebooks
+     * @param segmentSize Bytes per segment, must be even
+     * @param segmentCount Number of pooled segments, bounds the memory and the queues
+     * @param workers Worker threads per stage
+     */
+    public SPNPipeline(SPNBlockCipher cipher, int segmentSize, int segmentCount, Workers workers) {
+        if (segmentSize < 2 || (segmentSize & 1) != 0) {
+            throw new IllegalArgumentException("Segment size must be even and positive");
+        }
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("At least one segment is required");
+        }
+        this.cipher = cipher;
+        this.segmentSize = segmentSize;
+        this.segmentCount = segmentCount;
+        this.workers = workers;
+    }
+
+    /**
+     * Encrypts a file into a container
+     *
+     * If the operation fails the partially written target is deleted. Files beyond the counter
+     * limit are rejected before the target is created.
+     *
+     * @param iv The initial counter value (0..65535)
+     */
+    public Report encrypt(Path source, Path target, int iv) throws IOException {
+        SPNFileCipher.checkCounter(Files.size(source) / 2 + 1);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.wrap(new byte[]{SPNFileCipher.MAGIC[0], SPNFileCipher.MAGIC[1],
+                SPNFileCipher.MAGIC[2], (byte) SPNFileCipher.VERSION, 0, (byte) (iv >>> 8), (byte) iv});
+            writeFully(out, header, 0);
+            return new Run(in, out, iv, true, 0, in.size(), SPNFileCipher.HEADER_LENGTH).execute();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts a file into a container with an IV of the nonce service
+     *
+     * The counters of the file are registered for the key before anything is written.
+     *
+     * @throws SPNNonceService.CounterReuseException if the key has no unused counter range left
+     */
+    public Report encrypt(Path source, Path target, SPNNonceService nonces, String keyId) throws IOException {
+        long blocks = Files.size(source) / 2 + 1;
+        SPNFileCipher.checkCounter(blocks);
+        return encrypt(source, target, nonces.nextIv(keyId, (int) blocks));
+    }
+
+    /**
+     * Decrypts a container into a file
+     *
+     * If the operation fails the partially written target is deleted. Containers beyond the
+     * counter limit are rejected before the target is created.
+     */
+    public Report decrypt(Path source, Path target) throws IOException {
+        SPNFileCipher.checkCounter((Files.size(source) - SPNFileCipher.HEADER_LENGTH) / 2);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(SPNFileCipher.HEADER_LENGTH);
+            readFully(in, header, 0);
+            int iv = SPNFileCipher.readHeader(header.array());
+            if (SPNFileCipher.isCompressed(header.array())) {
+                throw new IOException("Compressed containers are decrypted with SPNFileCipher");
+            }
+            long length = in.size() - SPNFileCipher.HEADER_LENGTH;
+            if (length < 2 || (length & 1) != 0) {
+                throw new IOException("Ciphertext length is not a multiple of the block size");
+            }
+            return new Run(in, out, iv, false, SPNFileCipher.HEADER_LENGTH, length, 0).execute();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    // A pooled buffer pair, travels through all stages
+    private static final class Segment {
+        final byte[] data;
+        final byte[] keystream;
+        long index;
+        int length;
+        boolean last;
+
+        Segment(int size) {
+            // Two spare bytes for the padding of the last segment
+            data = new byte[size + 2];
+            keystream = new byte[size + 2];
+        }
+    }
+
+    // State of one encryption or decryption
+    private final class Run {
+        private final FileChannel in;
+        private final FileChannel out;
+        private final int iv;
+        private final boolean encrypt;
+        private final long inputOffset;
+        private final long inputLength;
+        private final long outputOffset;
+        private final long segments;
+
+        private final Queue<Segment> free = new ConcurrentLinkedQueue<>();
+        // Input queue of every stage after READ, indexed by Stage.ordinal()
+        private final List<Queue<Segment>> queues = new ArrayList<>();
+        private final AtomicLong nextIndex = new AtomicLong();
+        private final AtomicLong[] completed = new AtomicLong[Stage.values().length];
+        private final LongAdder[] busy = new LongAdder[Stage.values().length];
+        private final LongAdder[] waiting = new LongAdder[Stage.values().length];
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final AtomicLong written = new AtomicLong();
+
+        Run(FileChannel in, FileChannel out, int iv, boolean encrypt, long inputOffset, long inputLength,
+            long outputOffset) {
+            this.in = in;
+            this.out = out;
+            this.iv = iv;
+            this.encrypt = encrypt;
+            this.inputOffset = inputOffset;
+            this.inputLength = inputLength;
+            this.outputOffset = outputOffset;
+            // An empty plaintext still has a segment for its padding
+            this.segments = Math.max(1, (inputLength + segmentSize - 1) / segmentSize);
+            for (Stage stage : Stage.values()) {
+                queues.add(new ConcurrentLinkedQueue<>());
+                completed[stage.ordinal()] = new AtomicLong();
+                busy[stage.ordinal()] = new LongAdder();
+                waiting[stage.ordinal()] = new LongAdder();
+            }
+            for (long i = 0; i < Math.min(segmentCount, segments); i++) {
+                free.add(new Segment(segmentSize));
+            }
+        }
+
+        Report execute() throws IOException {
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (Stage stage : Stage.values()) {
+                for (int i = 0; i < workers.of(stage); i++) {
+                    Thread thread = new Thread(() -> work(stage), "spn-pipeline-" + stage.name().toLowerCase() + "-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                    threads.add(thread);
+                }
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                threads.forEach(Thread::interrupt);
+                Thread.currentThread().interrupt();
+            }
+            long wall = System.nanoTime() - start;
+
+            Throwable error = failure.get();
+            if (error instanceof IOException io) {
+                throw io;
+            } else if (error instanceof InterruptedException) {
+                throw new InterruptedIOException("Operation cancelled");
+            } else if (error instanceof RuntimeException runtime) {
+                throw runtime;
+            } else if (error != null) {
+                throw new IllegalStateException("Pipeline worker failed", error);
+            }
+
+            List<StageStats> stats = new ArrayList<>();
+            for (Stage stage : Stage.values()) {
+                stats.add(new StageStats(stage, workers.of(stage), completed[stage.ordinal()].get(),
+                    busy[stage.ordinal()].sum(), waiting[stage.ordinal()].sum()));
+            }
+            return new Report(encrypt ? inputLength : written.get(), wall, stats);
+        }
+
+        // Worker loop: takes segments from the input queue of the stage until all segments passed it
+        private void work(Stage stage) {
+            int ordinal = stage.ordinal();
+            Queue<Segment> input = stage == Stage.READ ? free : queues.get(ordinal);
+            try {
+                while (failure.get() == null && completed[ordinal].get() < segments) {
+                    if (stage == Stage.READ && nextIndex.get() >= segments) {
+                        break;
+                    }
+                    Segment segment = input.poll();
+                    if (segment == null) {
+                        long waitStart = System.nanoTime();
+                        LockSupport.parkNanos(WAIT_NANOS);
+                        waiting[ordinal].add(System.nanoTime() - waitStart);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        continue;
+                    }
+                    if (stage == Stage.READ) {
+                        long index = nextIndex.getAndIncrement();
+                        if (index >= segments) {
+                            free.add(segment);
+                            break;
+                        }
+                        segment.index = index;
+                    }
+                    long busyStart = System.nanoTime();
+                    process(stage, segment);
+                    busy[ordinal].add(System.nanoTime() - busyStart);
+                    completed[ordinal].incrementAndGet();
+                    // The writer returns the segment to the pool, the others pass it on
+                    (stage == Stage.WRITE ? free : queues.get(ordinal + 1)).add(segment);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void process(Stage stage, Segment segment) throws IOException {
+            switch (stage) {
+                case READ -> read(segment);
+                case KEYSTREAM -> keystream(segment);
+                case XOR -> xor(segment);
+                case WRITE -> write(segment);
+            }
+        }
+
+        private void read(Segment segment) throws IOException {
+            long position = segment.index * segmentSize;
+            int length = (int) Math.min(segmentSize, inputLength - position);
+            readFully(in, ByteBuffer.wrap(segment.data, 0, length), inputOffset + position);
+            segment.last = segment.index == segments - 1;
+            if (encrypt && segment.last) {
+                // Padding: a '1' bit followed by '0' bits up to the next block boundary
+                segment.data[length++] = (byte) 0x80;
+                if ((length & 1) != 0) {
+                    segment.data[length++] = 0;
+                }
+            }
+            segment.length = length;
+        }
+
+        // Encrypted counters iv + block index, like SPNBlockCipher.ctrXor; encrypt and decrypt
+        // checked that the block indices stay below MAX_CTR_BLOCKS, so no counter repeats
+        private void keystream(Segment segment) {
+            byte[] keystream = segment.keystream;
+            int counter = (int) ((iv + segment.index * (segmentSize / 2)) & 0xFFFF);
+            for (int i = 0; i < segment.length; i += 2) {
+                int block = cipher.encryptBlock(counter);
+                keystream[i] = (byte) (block >>> 8);
+                keystream[i + 1] = (byte) block;
+                counter = (counter + 1) & 0xFFFF;
+            }
+        }
+
+        private void xor(Segment segment) throws IOException {
+            byte[] data = segment.data;
+            byte[] keystream = segment.keystream;
+            for (int i = 0; i < segment.length; i++) {
+                data[i] ^= keystream[i];
+            }
+            if (!encrypt && segment.last) {
+                int length = segment.length;
+                if ((data[length - 1] & 0xFF) == 0x80) {
+                    segment.length = length - 1;
+                } else if ((data[length - 2] & 0xFF) == 0x80 && data[length - 1] == 0) {
+                    segment.length = length - 2;
+                } else {
+                    throw new IOException("Invalid padding, wrong key or damaged container");
+                }
+            }
+        }
+
+        private void write(Segment segment) throws IOException {
+            writeFully(out, ByteBuffer.wrap(segment.data, 0, segment.length),
+                outputOffset + segment.index * segmentSize);
+            written.addAndGet(segment.length);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String key = "0011 1010 1001 0100 1101 0110 0011 1111";
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--key") && i + 1 < args.length) {
+                key = args[++i];
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length < 3 || !(args[0].equals("encrypt") || args[0].equals("decrypt"))) {
+            System.err.println("Usage: java SPNPipeline (encrypt|decrypt) [--key key] source target [segment KB]"
+                + " [read keystream xor write workers]");
+            System.exit(2);
+        }
+        int[] keyBits = CombinedSPN.Helper.parseKey(key);
+        SPNBlockCipher cipher = new SPNExpandedKey(SPNExpandedKey.pack(keyBits), true);
+        SPNPipeline pipeline = new SPNPipeline(cipher);
+        if (args.length > 3) {
+            int segmentSize = Integer.parseInt(args[3]) * 1024;
+            Workers workers = args.length > 7
+                ? new Workers(Integer.parseInt(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]),
+                    Integer.parseInt(args[7]))
+                : pipeline.workers;
+            pipeline = new SPNPipeline(cipher, segmentSize, workers);
+        }
+        Path source = Path.of(args[1]);
+        Path target = Path.of(args[2]);
+        Report report = args[0].equals("encrypt")
+            ? pipeline.encrypt(source, target, SPNNonceService.shared(), SPNNonceService.shared().keyId(keyBits))
+            : pipeline.decrypt(source, target);
+        System.out.print(report);
+    }
+}
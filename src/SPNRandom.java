@@ -0,0 +1,201 @@
+import java.math.BigDecimal;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
+
+/**
+ * Deterministic random bit generator on the CTR keystream of a 64-bit SPN
+ *
+ * The generator encrypts the counters iv, iv + 1, ... with an SPNEngine of 16 S-boxes of the
+ * assignment (64-bit blocks), every block is one nextLong. The same key and IV always give the
+ * same sequence, so simulations and test fixtures can be reproduced from two values.
+ *
+ * The state is only the counter, so streams can be moved arbitrarily: jump(distance) skips
+ * distance values in constant time and substream(i) starts at block i * 2^32 of the same key.
+ * split() works like SplittableRandom: key and IV of the new generator are the next three
+ * values of this one, so split generators can be split again to any depth without their
+ * counter ranges running into each other or into the substreams of the parent. Every thread
+ * can work with its own generator without sharing anything.
+ *
+ * nextBytes fills large arrays in parallel chunks, chunk c uses the counters of its position.
+ *
+ * Not suitable as cryptographic generator: the SPN of the assignment is a teaching cipher. A
+ * generator is not thread safe, use split() to get one per thread.
+ */
+public final class SPNRandom implements RandomGenerator.ArbitrarilyJumpableGenerator {
+    /** Number of rounds of the engine, the key has 16 + ROUNDS digits */
+    public static final int ROUNDS = 8;
+    /** Number of values skipped by jump() */
+    public static final long JUMP_DISTANCE = 1L << 32;
+    /** Number of values skipped by leap() */
+    public static final long LEAP_DISTANCE = 1L << 48;
+
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+    private static final int CHUNK_BYTES = 1 << 14;
+
+    private final SPNEngine engine;
+    private final long iv;
+    // Counter of the next block, iv + number of generated values modulo 2^64
+    private long counter;
+
+    /**
+     * @param key 16 + ROUNDS digits of 4 bits
+     * @param iv First counter value
+     */
+    public SPNRandom(int[] key, long iv) {
+        this(SPNEngine.withAssignmentSBox(16, ROUNDS, key), iv, iv);
+    }
+
+    /**
+     * Generator with a key of 96 bits, given as two longs, for use without digit arrays
+     *
+     * The 24 digits are the 16 digits of keyHigh followed by the upper 8 digits of keyLow.
+     */
+    public SPNRandom(long keyHigh, long keyLow, long iv) {
+        this(digits(keyHigh, keyLow), iv);
+    }
+
+    private SPNRandom(SPNEngine engine, long iv, long counter) {
+        this.engine = engine;
+        this.iv = iv;
+        this.counter = counter;
+    }
+
+    private static int[] digits(long keyHigh, long keyLow) {
+        int[] key = new int[16 + ROUNDS];
+        for (int i = 0; i < key.length; i++) {
+            long word = i < 16 ? keyHigh : keyLow;
+            key[i] = (int) (word >>> (60 - 4 * (i % 16))) & 0xF;
+        }
+        return key;
+    }
+
+    /**
+     * Number of values generated since the IV, modulo 2^64
+     */
+    public long position() {
+        return counter - iv;
+    }
+
+    @Override
+    public long nextLong() {
+        return engine.encryptBlock(counter++);
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /**
+     * Fills the array with keystream bytes, 8 per value (big endian)
+     *
+     * A partially used last value is discarded, like in RandomGenerator.nextBytes. Large arrays
+     * are filled in parallel.
+     */
+    @Override
+    public void nextBytes(byte[] bytes) {
+        nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Fills a range of the array with keystream bytes
+     */
+    public void nextBytes(byte[] bytes, int off, int len) {
+        long first = counter;
+        counter += (len + 7) / 8;
+        if (len < PARALLEL_THRESHOLD) {
+            fill(bytes, off, len, first);
+            return;
+        }
+        int chunks = (len + CHUNK_BYTES - 1) / CHUNK_BYTES;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_BYTES;
+            fill(bytes, off + from, Math.min(CHUNK_BYTES, len - from), first + from / 8);
+        });
+    }
+
+    // Writes the encrypted counters first, first + 1, ... into the range
+    private void fill(byte[] bytes, int off, int len, long first) {
+        long block = first;
+        int end = off + len;
+        int i = off;
+        for (; i + 8 <= end; i += 8) {
+            long value = engine.encryptBlock(block++);
+            for (int b = 7; b >= 0; b--) {
+                bytes[i + b] = (byte) value;
+                value >>>= 8;
+            }
+        }
+        if (i < end) {
+            long value = engine.encryptBlock(block);
+            for (int shift = 56; i < end; i++, shift -= 8) {
+                bytes[i] = (byte) (value >>> shift);
+            }
+        }
+    }
+
+    /**
+     * Returns a generator with a key and IV taken from the next three values of this one
+     *
+     * The new generator encrypts with a different key, so its stream does not depend on the
+     * counter positions of this one. The result is still reproducible from key and IV of the
+     * parent.
+     */
+    public SPNRandom split() {
+        long keyHigh = nextLong();
+        long keyLow = nextLong();
+        return new SPNRandom(keyHigh, keyLow, nextLong());
+    }
+
+    /**
+     * Returns a generator at block index * JUMP_DISTANCE of the stream of this key and IV,
+     * e.g. the stream of worker number index
+     */
+    public SPNRandom substream(long index) {
+        return new SPNRandom(engine, iv, iv + index * JUMP_DISTANCE);
+    }
+
+    @Override
+    public SPNRandom copy() {
+        return new SPNRandom(engine, iv, counter);
+    }
+
+    @Override
+    public void jumpPowerOfTwo(int logDistance) {
+        if (logDistance < 0) {
+            throw new IllegalArgumentException("Jump distance must not be negative");
+        }
+        if (logDistance < 64) {
+            counter += 1L << logDistance;
+        }
+    }
+
+    @Override
+    public void jump(double distance) {
+        if (!(distance >= 0) || Double.isInfinite(distance) || distance != Math.floor(distance)) {
+            throw new IllegalArgumentException("Jump distance must be a non-negative integer: " + distance);
+        }
+        // The counter wraps modulo 2^64, only the low 64 bits of the distance matter
+        counter += new BigDecimal(distance).toBigInteger().longValue();
+    }
+
+    @Override
+    public void jump() {
+        counter += JUMP_DISTANCE;
+    }
+
+    @Override
+    public void leap() {
+        counter += LEAP_DISTANCE;
+    }
+
+    @Override
+    public double jumpDistance() {
+        return JUMP_DISTANCE;
+    }
+
+    @Override
+    public double leapDistance() {
+        return LEAP_DISTANCE;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Receives the intermediate states of a traced block operation
+ *
+ * Only the traced variants SPN.encryptBlock(int, SPNRoundObserver),
+ * SPN.decryptBlock(int, SPNRoundObserver) and their string counterparts
+ * SPN.encrypt(String, SPNRoundObserver) and SPN.decrypt(String, SPNRoundObserver) call an
+ * observer. They are separate methods, so the untraced operations contain no tracing code at all.
+ *
+ * States are blocks packed into ints like in SPNBlockCipher, on the string path the first
+ * 4-bit value is the highest nibble.
+ */
+@FunctionalInterface
+public interface SPNRoundObserver {
+    /**
+     * Called once per round, round 0 is the initial key addition
+     *
+     * In round 0 no S-box and no permutation is applied, so afterSBox and afterPermutation
+     * are the input block. In the last round there is no permutation, so afterPermutation
+     * equals afterSBox.
+     *
+     * @param round The round index (0..rounds)
+     * @param afterSBox State after the S-box of this round
+     * @param afterPermutation State after the bit permutation of this round
+     * @param afterKey State after the round key was added, i.e. the output of the round
+     */
+    void onRound(int round, int afterSBox, int afterPermutation, int afterKey);
+}
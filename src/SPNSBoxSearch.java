@@ -0,0 +1,373 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Searches 4-bit S-boxes with good differential and linear properties
+ *
+ * Candidates are random permutations of 0..15. Every candidate is scored by
+ * - differential uniformity: the largest entry of the difference distribution table (DDT)
+ *   for an input difference a != 0, lower is better (4 is optimal for 4 bits)
+ * - linearity: the largest absolute Walsh coefficient |W(a, b)| for an output mask b != 0,
+ *   i.e. twice the largest bias of the linear approximation table (LAT), lower is better
+ *   (8 is optimal for 4 bits)
+ *
+ * Both tables are computed bit-parallel on the truth tables of the S-box: each output bit is a
+ * 16-bit truth table, so a derivative S(x) ^ S(x ^ a) or a linear combination of output bits
+ * costs a few shifts and XORs for all 16 inputs, and a table entry is an Integer.bitCount.
+ *
+ * The 16! S-boxes fall into 302 classes of affine equivalent S-boxes (B S A with affine
+ * permutations A and B), which share DDT and LAT up to the order of the entries. The top list
+ * keeps one S-box per class, so it shows different classes instead of many equivalent copies of
+ * the best one. A candidate is first compared by its signature (the value histograms of DDT and
+ * Walsh spectrum), which is equal for equivalent S-boxes, and only on a match by the exact test
+ * of affineEquivalent. The sampling itself still draws from
+ * all 16! permutations.
+ *
+ * Sampling runs as ForkJoin tasks, each with its own generator and top-K heap, the heaps are
+ * merged when the tasks join.
+ *
+ * Usage: java SPNSBoxSearch [samples] [top K] [seed]
+ * A result plugs into the cipher with new CombinedSPN.SPN(rounds, 4, 4, key, sBox).
+ */
+public final class SPNSBoxSearch {
+    private static final int SIZE = 16;
+    // Samples per leaf task
+    private static final int BATCH = 1 << 14;
+    // Bit masks that select the inputs x with bit k clear, used to compute x -> x ^ a on truth tables
+    private static final int[] HALF_MASKS = {0x5555, 0x3333, 0x0F0F, 0x00FF};
+    // Truth tables of the linear functions x -> a.x
+    private static final int[] LINEAR = new int[SIZE];
+
+    static {
+        for (int a = 0; a < SIZE; a++) {
+            for (int x = 0; x < SIZE; x++) {
+                LINEAR[a] |= (Integer.bitCount(a & x) & 1) << x;
+            }
+        }
+    }
+
+    /**
+     * A scored S-box, ordered from best to worst by uniformity, linearity and the number of
+     * table entries that reach these maxima
+     */
+    public record Candidate(int[] sBox, int uniformity, int linearity, int uniformityCount, int linearityCount,
+                            String signature) {
+        static final Comparator<Candidate> BEST_FIRST = Comparator.comparingInt(Candidate::uniformity)
+            .thenComparingInt(Candidate::linearity)
+            .thenComparingInt(Candidate::uniformityCount)
+            .thenComparingInt(Candidate::linearityCount);
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int value : sBox) {
+                text.append(Integer.toHexString(value).toUpperCase());
+            }
+            return String.format("%s  uniformity %d (%d times)  linearity %d (%d times)",
+                text, uniformity, uniformityCount, linearity, linearityCount);
+        }
+    }
+
+    private SPNSBoxSearch() {
+    }
+
+    /**
+     * Scores an S-box, which must be a permutation of 0..15
+     */
+    public static Candidate score(int[] sBox) {
+        // Truth table of every output bit: bit x of outputs[j] is bit j of S(x)
+        int[] outputs = new int[4];
+        for (int x = 0; x < SIZE; x++) {
+            for (int j = 0; j < 4; j++) {
+                outputs[j] |= ((sBox[x] >>> j) & 1) << x;
+            }
+        }
+
+        // DDT: for every input difference the truth tables of S(x) ^ S(x ^ a), then one count per output difference
+        int[] ddtSpectrum = new int[SIZE + 1];
+        int uniformity = 0;
+        int uniformityCount = 0;
+        for (int a = 1; a < SIZE; a++) {
+            int[] derivative = new int[4];
+            for (int j = 0; j < 4; j++) {
+                derivative[j] = outputs[j] ^ shifted(outputs[j], a);
+            }
+            for (int b = 0; b < SIZE; b++) {
+                int matches = 0xFFFF;
+                for (int j = 0; j < 4; j++) {
+                    matches &= ((b >>> j) & 1) != 0 ? derivative[j] : ~derivative[j];
+                }
+                int count = Integer.bitCount(matches & 0xFFFF);
+                ddtSpectrum[count]++;
+                if (count > uniformity) {
+                    uniformity = count;
+                    uniformityCount = 1;
+                } else if (count == uniformity) {
+                    uniformityCount++;
+                }
+            }
+        }
+
+        // LAT: Walsh coefficient W(a, b) = 16 - 2 * |{x : a.x != b.S(x)}| for every component b.S
+        int[] walshSpectrum = new int[SIZE + 1];
+        int linearity = 0;
+        int linearityCount = 0;
+        for (int b = 1; b < SIZE; b++) {
+            int component = 0;
+            for (int j = 0; j < 4; j++) {
+                if (((b >>> j) & 1) != 0) {
+                    component ^= outputs[j];
+                }
+            }
+            for (int a = 0; a < SIZE; a++) {
+                int walsh = Math.abs(SIZE - 2 * Integer.bitCount((component ^ LINEAR[a]) & 0xFFFF));
+                walshSpectrum[walsh]++;
+                if (walsh > linearity) {
+                    linearity = walsh;
+                    linearityCount = 1;
+                } else if (walsh == linearity) {
+                    linearityCount++;
+                }
+            }
+        }
+        String signature = Arrays.toString(ddtSpectrum) + Arrays.toString(walshSpectrum);
+        return new Candidate(sBox.clone(), uniformity, linearity, uniformityCount, linearityCount, signature);
+    }
+
+    /**
+     * Whether s2 = B s1 A for affine permutations A and B of 4 bits
+     *
+     * Searches the affine map A' = A^-1, x -> Lx + c, for which B = s2 A' s1^-1 is affine. Then
+     * DDT2[Ld][e'] = DDT1[d][e] with the columns permuted by B, so the products of DDT rows,
+     * G[d1][d2] = sum over e of DDT[d1][e] * DDT[d2][e], satisfy G1[d1][d2] = G2[Ld1][Ld2]. The
+     * linear part L is built one unit vector image at a time and every image that violates this
+     * is dropped at once, so only a handful of complete maps are tried with all 16 constants.
+     */
+    public static boolean affineEquivalent(int[] s1, int[] s2) {
+        int[][] gram1 = ddtGram(s1);
+        int[][] gram2 = ddtGram(s2);
+        int[] inverse = new int[SIZE];
+        for (int x = 0; x < SIZE; x++) {
+            inverse[s1[x]] = x;
+        }
+        return extendLinear(0, new int[SIZE], gram1, gram2, s2, inverse);
+    }
+
+    // Chooses the image of unit vector k, map holds L on the span of the unit vectors below k
+    private static boolean extendLinear(int k, int[] map, int[][] gram1, int[][] gram2, int[] s2, int[] inverse) {
+        if (k == 4) {
+            return affineWithLinear(map, s2, inverse);
+        }
+        int spanSize = 1 << k;
+        for (int column = 1; column < SIZE; column++) {
+            boolean inSpan = false;
+            for (int x = 0; x < spanSize && !inSpan; x++) {
+                inSpan = map[x] == column;
+            }
+            if (inSpan) {
+                continue;
+            }
+            boolean compatible = true;
+            for (int x = spanSize; x < 2 * spanSize && compatible; x++) {
+                map[x] = map[x - spanSize] ^ column;
+                for (int y = 1; y <= x && compatible; y++) {
+                    compatible = gram1[x][y] == gram2[map[x]][map[y]];
+                }
+            }
+            if (compatible && extendLinear(k + 1, map, gram1, gram2, s2, inverse)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether B(y) = s2(L(s1^-1(y)) ^ c) is affine for one of the 16 constants c
+    private static boolean affineWithLinear(int[] linear, int[] s2, int[] inverse) {
+        for (int constant = 0; constant < SIZE; constant++) {
+            // B is affine if B(y) ^ B(0) is linear in y
+            int b0 = s2[linear[inverse[0]] ^ constant];
+            int[] columns = new int[4];
+            for (int k = 0; k < 4; k++) {
+                columns[k] = s2[linear[inverse[1 << k]] ^ constant] ^ b0;
+            }
+            boolean affine = true;
+            for (int y = 3; y < SIZE && affine; y++) {
+                int expected = b0;
+                for (int k = 0; k < 4; k++) {
+                    if (((y >>> k) & 1) != 0) {
+                        expected ^= columns[k];
+                    }
+                }
+                affine = s2[linear[inverse[y]] ^ constant] == expected;
+            }
+            if (affine) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Products of the DDT rows, G[d1][d2] = sum over e of DDT[d1][e] * DDT[d2][e]
+    private static int[][] ddtGram(int[] sBox) {
+        int[][] ddt = new int[SIZE][SIZE];
+        for (int d = 0; d < SIZE; d++) {
+            for (int x = 0; x < SIZE; x++) {
+                ddt[d][sBox[x] ^ sBox[x ^ d]]++;
+            }
+        }
+        int[][] gram = new int[SIZE][SIZE];
+        for (int d1 = 0; d1 < SIZE; d1++) {
+            for (int d2 = 0; d2 <= d1; d2++) {
+                int sum = 0;
+                for (int e = 0; e < SIZE; e++) {
+                    sum += ddt[d1][e] * ddt[d2][e];
+                }
+                gram[d1][d2] = sum;
+                gram[d2][d1] = sum;
+            }
+        }
+        return gram;
+    }
+
+    // Truth table of x -> f(x ^ a): for every set bit k of a, swap the halves of distance 2^k
+    private static int shifted(int table, int a) {
+        for (int k = 0; k < 4; k++) {
+            if (((a >>> k) & 1) != 0) {
+                int distance = 1 << k;
+                table = ((table >>> distance) & HALF_MASKS[k]) | ((table & HALF_MASKS[k]) << distance);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Samples random S-boxes and returns the best ones, at most one per affine equivalence class
+     *
+     * @param samples Number of random S-boxes
+     * @param topK Size of the result
+     * @param seed Seed of the random generators
+     */
+    public static List<Candidate> search(long samples, int topK, long seed) {
+        TopK result = ForkJoinPool.commonPool().invoke(new SampleTask(0, samples, topK, new SplittableRandom(seed)));
+        return result.sorted();
+    }
+
+    // Scores a range of samples, splits large ranges in halves with independent generators
+    private static final class SampleTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final long to;
+        private final int topK;
+        private final transient SplittableRandom random;
+
+        SampleTask(long from, long to, int topK, SplittableRandom random) {
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+            this.random = random;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from > BATCH) {
+                long middle = (from + to) >>> 1;
+                SampleTask left = new SampleTask(from, middle, topK, random.split());
+                SampleTask right = new SampleTask(middle, to, topK, random.split());
+                left.fork();
+                TopK result = right.compute();
+                result.addAll(left.join());
+                return result;
+            }
+            TopK result = new TopK(topK);
+            int[] sBox = new int[SIZE];
+            for (long i = from; i < to; i++) {
+                // Fisher-Yates shuffle of 0..15
+                for (int j = 0; j < SIZE; j++) {
+                    sBox[j] = j;
+                }
+                for (int j = SIZE - 1; j > 0; j--) {
+                    int k = random.nextInt(j + 1);
+                    int swap = sBox[j];
+                    sBox[j] = sBox[k];
+                    sBox[k] = swap;
+                }
+                result.offer(score(sBox));
+            }
+            return result;
+        }
+    }
+
+    // The K best candidates of distinct affine classes, the worst is at the head of the heap
+    private static final class TopK {
+        private final int capacity;
+        private final PriorityQueue<Candidate> heap = new PriorityQueue<>(Candidate.BEST_FIRST.reversed());
+        // Heap members by signature, only members with the same signature can be equivalent
+        private final Map<String, List<Candidate>> bySignature = new HashMap<>();
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(Candidate candidate) {
+            // The cheap comparison first, the equivalence test only runs for candidates that would enter
+            if (heap.size() >= capacity && Candidate.BEST_FIRST.compare(candidate, heap.peek()) >= 0) {
+                return;
+            }
+            List<Candidate> sameSignature = bySignature.get(candidate.signature());
+            if (sameSignature != null) {
+                for (Candidate member : sameSignature) {
+                    if (affineEquivalent(member.sBox(), candidate.sBox())) {
+                        return;
+                    }
+                }
+            }
+            if (heap.size() >= capacity) {
+                Candidate worst = heap.poll();
+                List<Candidate> members = bySignature.get(worst.signature());
+                members.remove(worst);
+                if (members.isEmpty()) {
+                    bySignature.remove(worst.signature());
+                }
+            }
+            heap.add(candidate);
+            bySignature.computeIfAbsent(candidate.signature(), signature -> new ArrayList<>()).add(candidate);
+        }
+
+        void addAll(TopK other) {
+            for (Candidate candidate : other.heap) {
+                offer(candidate);
+            }
+        }
+
+        List<Candidate> sorted() {
+            List<Candidate> list = new ArrayList<>(heap);
+            list.sort(Candidate.BEST_FIRST);
+            return list;
+        }
+    }
+
+    public static void main(String[] args) {
+        long samples = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int topK = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+
+        System.out.println("Assignment S-box: " + score(SPNEngine.ASSIGNMENT_SBOX));
+        long start = System.nanoTime();
+        List<Candidate> best = search(samples, topK, seed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Scored %d random S-boxes in %.1f s (%.0f per second, seed %d)%n",
+            samples, seconds, samples / seconds, seed);
+        for (Candidate candidate : best) {
+            System.out.println("  " + candidate);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Validation of the cipher against the test vector of the assignment, run at most once per JVM
+ *
+ * The test runs lazily on the first call of result(), not at class loading or start-up, so
+ * invocations that never encrypt anything (usage errors, help) do not pay for it. The test
+ * vector is checked on the string and on the block path; the block path runs on the generated
+ * constant tables (SPNTables), whose staleness the build checks (SPNTablesGenerator --check).
+ */
+public final class SPNSelfTest {
+    static final String TEST_INPUT = "0001001010001111";
+    static final String TEST_OUTPUT = "1010111010110100";
+    // k = 0001 0001 0010 1000 1000 1100 0000 0000
+    static final int[] TEST_KEY = {0b0001, 0b0001, 0b0010, 0b1000, 0b1000, 0b1100, 0b0000, 0b0000};
+
+    /**
+     * Outcome of the self-test, failures lists what differed
+     */
+    public record Result(boolean passed, String failures) {
+    }
+
+    private SPNSelfTest() {
+    }
+
+    // Initialized on first access only
+    private static final class Holder {
+        static final Result RESULT = run();
+    }
+
+    /**
+     * Runs the self-test on the first call and returns its (cached) result
+     */
+    public static Result result() {
+        return Holder.RESULT;
+    }
+
+    /**
+     * Throws if the self-test failed
+     *
+     * @throws IllegalStateException with the failures
+     */
+    public static void ensurePassed() {
+        Result result = result();
+        if (!result.passed()) {
+            throw new IllegalStateException("SPN self-test failed: " + result.failures());
+        }
+    }
+
+    private static Result run() {
+        StringBuilder failures = new StringBuilder();
+        CombinedSPN.SPN spn = new CombinedSPN.SPN(4, 4, 4, TEST_KEY);
+        String stringResult = spn.encrypt(TEST_INPUT);
+        if (!stringResult.equals(TEST_OUTPUT)) {
+            failures.append("string path gives ").append(stringResult).append("; ");
+        }
+        int block = Integer.parseInt(TEST_INPUT, 2);
+        int expected = Integer.parseInt(TEST_OUTPUT, 2);
+        if (spn.encryptBlock(block) != expected) {
+            failures.append("block path gives ").append(Integer.toBinaryString(spn.encryptBlock(block))).append("; ");
+        }
+        if (spn.decryptBlock(expected) != block) {
+            failures.append("block decryption does not invert the test vector; ");
+        }
+        return new Result(failures.isEmpty(), failures.toString());
+    }
+}
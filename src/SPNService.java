@@ -0,0 +1,527 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP service for CTR encryption and decryption
+ *
+ * Endpoints (bound to the loopback interface only):
+ * - POST /encrypt: body is the plaintext, response is an SPN container (see SPNFileCipher)
+ * - POST /decrypt: body is an SPN container, response is the plaintext
+ * - GET /health: returns "ok"
+ * - GET /metrics: cipher metrics (see SPNMetrics) and key cache statistics
+ *
+ * Query parameters: key (32 binary or 8 hex digits, default is the key of the assignment)
+ * and for /encrypt optionally iv (16 binary digits, 0x-prefixed hex or decimal). Without an IV a
+ * small message takes the next unused counters of its key from an SPNKeystreamPool, whose
+ * producer has usually computed the keystream already, so the request only XORs. Larger
+ * messages get a random IV whose counters were never used with the key.
+ *
+ * All clients share the default key, so every counter range is registered with
+ * SPNNonceService.shared(): the pool leases its counters there, random IVs come from it, and a
+ * given IV is only accepted if its counters are unused. A request whose counters are in use, or
+ * whose key has no unused range left, is answered with 409 and must use another IV or key.
+ *
+ * Every request is handled on its own virtual thread. Other small requests are not encrypted by
+ * their handler but collected by a batcher for a short moment, then all collected requests
+ * with the same key are processed in one pass in which every distinct counter is encrypted
+ * only once. There is a batcher per core (at most MAX_BATCHERS), a key is always handled by the
+ * same one, so its requests still meet in one batch while different keys run in parallel.
+ * Expanded keys are kept in an SPNKeyring, so a key is only set up on its first use. Keys of an
+ * SPNCodebookStore given at start use its mapped codebooks instead of computing their own.
+ *
+ * Request bodies are limited to MAX_BODY_BYTES, the largest container the 16-bit counter allows,
+ * and compressed containers to MAX_INFLATED_BYTES of plaintext.
+ * Invalid requests are answered with 400, larger bodies with 413, counter reuse with 409 and
+ * unexpected errors with 500.
+ *
+ * Usage:
+ * java SPNService [port] [codebook store]             starts the service (default port 8765)
+ * java SPNService load <url> <requests> <concurrency> sends encrypt requests to a running service
+ */
+public final class SPNService {
+    private static final int DEFAULT_PORT = 8765;
+    private static final int DEFAULT_KEY = 0x3A94D63F;
+
+    // Requests up to this size are batched, larger ones are processed by their handler directly
+    private static final int BATCH_LIMIT_BYTES = 4096;
+    private static final long BATCH_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_BATCHERS = 8;
+    // Header and 2^16 blocks, see SPNBlockCipher.MAX_CTR_BLOCKS
+    private static final int MAX_BODY_BYTES = SPNFileCipher.HEADER_LENGTH + 2 * (int) SPNBlockCipher.MAX_CTR_BLOCKS;
+    // Bounds the memory of one decryption, deflate reaches ratios of about 1000:1
+    private static final int MAX_INFLATED_BYTES = 16 << 20;
+    private static final int MAX_CACHED_KEYS = 1024;
+    private static final long MAX_CACHED_KEY_BYTES = 64L << 20;
+    // Keystream blocks prepared ahead per key, 8 KB of ring per key
+    private static final int POOL_LOW_WATERMARK = 256;
+    private static final int POOL_HIGH_WATERMARK = 1024;
+    // Requests of the load test per key, about 37 blocks each
+    private static final int LOAD_REQUESTS_PER_KEY = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final SPNKeyring keyring;
+    private final SPNNonceService nonces = SPNNonceService.shared();
+    private final SPNKeystreamPool keystreamPool =
+        new SPNKeystreamPool(POOL_LOW_WATERMARK, POOL_HIGH_WATERMARK, MAX_CACHED_KEYS, nonces);
+    private final Batcher[] batchers;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedRequests = new AtomicLong();
+
+    /**
+     * Creates the service on the loopback interface, port 0 selects a free port
+     */
+    public SPNService(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param port Port on the loopback interface, 0 selects a free port
+     * @param store Codebooks for the keys it contains, may be null; must stay open while the service runs
+     */
+    public SPNService(int port, SPNCodebookStore store) throws IOException {
+        keyring = new SPNKeyring(keyId -> null, store, MAX_CACHED_KEYS, MAX_CACHED_KEY_BYTES, true);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/encrypt", exchange -> handle(exchange, true));
+        server.createContext("/decrypt", exchange -> handle(exchange, false));
+        server.createContext("/health", exchange -> respond(exchange, 200, "ok".getBytes(StandardCharsets.US_ASCII)));
+        server.createContext("/metrics", exchange -> respond(exchange, 200,
+            (SPNMetrics.export() + "# key cache " + keyring.stats() + "\n# keystream pool " + keystreamPool.stats()
+                + "\n").getBytes(StandardCharsets.UTF_8)));
+        batchers = new Batcher[Math.min(MAX_BATCHERS, Math.max(2, Runtime.getRuntime().availableProcessors()))];
+        for (int i = 0; i < batchers.length; i++) {
+            batchers[i] = new Batcher(i);
+        }
+    }
+
+    public void start() {
+        for (Batcher batcher : batchers) {
+            batcher.thread.start();
+        }
+        keystreamPool.start();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        for (Batcher batcher : batchers) {
+            batcher.thread.interrupt();
+        }
+        keystreamPool.close();
+        executor.close();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, boolean encrypt) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "POST required\n".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            // One byte more than allowed tells a body that is too large from one that fits exactly
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                respond(exchange, 413, ("Request body exceeds " + MAX_BODY_BYTES + " bytes\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI());
+            byte[] result;
+            try {
+                String keyText = query.get("key");
+                int[] key = keyText == null ? SPNExpandedKey.unpack(DEFAULT_KEY) : CombinedSPN.Helper.parseKey(keyText);
+                // The ID is a fingerprint of the key, so the key never shows up in key cache events
+                // or responses; the same key in binary and hex notation still gets the same ID
+                String keyId = nonces.keyId(key);
+                SPNExpandedKey spn = keyring.get(keyId, key);
+                if (!encrypt) {
+                    result = decrypt(spn, body);
+                } else if (query.get("iv") == null) {
+                    result = encrypt(keyId, spn, body);
+                } else {
+                    int iv = iv(query.get("iv"));
+                    nonces.register(keyId, iv, blocks(body));
+                    result = encrypt(spn, body, iv);
+                }
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (SPNNonceService.CounterReuseException e) {
+                respond(exchange, 409, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Request failed: " + e);
+                respond(exchange, 500, "Internal error\n".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            respond(exchange, 200, result);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public SPNKeyring.Stats keyStats() {
+        return keyring.stats();
+    }
+
+    private static int iv(String text) {
+        int value;
+        if (text.length() == 16 && text.matches("[01]+")) {
+            value = Integer.parseInt(text, 2);
+        } else if (text.startsWith("0x") || text.startsWith("0X")) {
+            value = Integer.parseInt(text.substring(2), 16);
+        } else {
+            value = Integer.parseInt(text);
+        }
+        if (value < 0 || value > 0xFFFF) {
+            throw new IllegalArgumentException("IV must be a 16-bit value: " + text);
+        }
+        return value;
+    }
+
+    /**
+     * Encrypts a message into the container format, the counters of the IV must be registered
+     */
+    byte[] encrypt(SPNBlockCipher spn, byte[] plaintext, int iv) {
+        byte[] container = container(plaintext, iv);
+        applyKeystream(spn, iv, container, SPNFileCipher.HEADER_LENGTH, container.length - SPNFileCipher.HEADER_LENGTH);
+        return container;
+    }
+
+    /**
+     * Encrypts a message with unused counters of its key, small messages use the keystream pool
+     *
+     * @throws SPNNonceService.CounterReuseException if the key has no unused range left
+     */
+    byte[] encrypt(String keyId, SPNBlockCipher spn, byte[] plaintext) {
+        byte[] container = container(plaintext, 0);
+        int length = container.length - SPNFileCipher.HEADER_LENGTH;
+        if (length > BATCH_LIMIT_BYTES) {
+            return encrypt(spn, plaintext, nonces.nextIv(keyId, blocks(plaintext)));
+        }
+        int iv = keystreamPool.xor(keyId, spn, container, SPNFileCipher.HEADER_LENGTH, length);
+        container[5] = (byte) (iv >>> 8);
+        container[6] = (byte) iv;
+        return container;
+    }
+
+    // Number of blocks of a padded message
+    private static int blocks(byte[] plaintext) {
+        return plaintext.length / 2 + 1;
+    }
+
+    // Header with the IV and the padded plaintext, not yet encrypted
+    private static byte[] container(byte[] plaintext, int iv) {
+        // Padding: a '1' bit followed by '0' bits up to the next block boundary
+        int paddedLength = (plaintext.length + 2) & ~1;
+        byte[] container = new byte[SPNFileCipher.HEADER_LENGTH + paddedLength];
+        System.arraycopy(SPNFileCipher.MAGIC, 0, container, 0, SPNFileCipher.MAGIC.length);
+        container[3] = (byte) SPNFileCipher.VERSION;
+        container[5] = (byte) (iv >>> 8);
+        container[6] = (byte) iv;
+        System.arraycopy(plaintext, 0, container, SPNFileCipher.HEADER_LENGTH, plaintext.length);
+        container[SPNFileCipher.HEADER_LENGTH + plaintext.length] = (byte) 0x80;
+        return container;
+    }
+
+    /**
+     * Decrypts a container and removes the padding
+     */
+    byte[] decrypt(SPNBlockCipher spn, byte[] container) {
+        int iv;
+        try {
+            iv = SPNFileCipher.readHeader(container);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        int length = container.length - SPNFileCipher.HEADER_LENGTH;
+        if (length < 2 || (length & 1) != 0) {
+            throw new IllegalArgumentException("Ciphertext length is not a multiple of the block size");
+        }
+        applyKeystream(spn, iv, container, SPNFileCipher.HEADER_LENGTH, length);
+        int end = container.length;
+        if ((container[end - 1] & 0xFF) == 0x80) {
+            end -= 1;
+        } else if ((container[end - 2] & 0xFF) == 0x80 && container[end - 1] == 0) {
+            end -= 2;
+        } else {
+            throw new IllegalArgumentException("Invalid padding, wrong key or damaged container");
+        }
+        if (SPNFileCipher.isCompressed(container)) {
+            return inflate(container, SPNFileCipher.HEADER_LENGTH, end - SPNFileCipher.HEADER_LENGTH);
+        }
+        byte[] plaintext = new byte[end - SPNFileCipher.HEADER_LENGTH];
+        System.arraycopy(container, SPNFileCipher.HEADER_LENGTH, plaintext, 0, plaintext.length);
+        return plaintext;
+    }
+
+    // Inflates the frames of a compressed container (created with SPNBatch --compress or the GUI)
+    private static byte[] inflate(byte[] frames, int off, int len) {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream((int) Math.min(4L * len, MAX_INFLATED_BYTES));
+        SPNFileCipher.FrameInflater inflater = new SPNFileCipher.FrameInflater(plaintext, MAX_INFLATED_BYTES);
+        try {
+            inflater.write(frames, off, len);
+            inflater.finish();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            inflater.inflater.end();
+        }
+        return plaintext.toByteArray();
+    }
+
+    // XORs the keystream into the data, small requests are handed to the batcher
+    private void applyKeystream(SPNBlockCipher spn, int iv, byte[] data, int off, int len) {
+        if (len > BATCH_LIMIT_BYTES) {
+            spn.ctrXor(iv, 0, data, off, len);
+            return;
+        }
+        BatchJob job = new BatchJob(spn, iv, data, off, len);
+        // The keyring returns one instance per key, so a key always goes to the same batcher
+        batchers[Math.floorMod(System.identityHashCode(spn), batchers.length)].pending.add(job);
+        try {
+            job.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the keystream");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Keystream generation failed", e.getCause());
+        }
+    }
+
+    // A small request waiting for its keystream
+    private static final class BatchJob {
+        final SPNBlockCipher spn;
+        final int iv;
+        final byte[] data;
+        final int off;
+        final int len;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        BatchJob(SPNBlockCipher spn, int iv, byte[] data, int off, int len) {
+            this.spn = spn;
+            this.iv = iv;
+            this.data = data;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+    /**
+     * Collects small requests for up to BATCH_WINDOW_NANOS and processes them together
+     */
+    private final class Batcher implements Runnable {
+        private final BlockingQueue<BatchJob> pending = new LinkedBlockingQueue<>();
+        private final Thread thread;
+
+        Batcher(int index) {
+            thread = new Thread(this, "spn-keystream-batcher-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Encrypted counters of the current batch; stamp[c] == batch marks keystream[c] as valid,
+            // so the tables never need to be cleared between batches
+            int[] keystream = new int[1 << 16];
+            long[] stamp = new long[1 << 16];
+            long batch = 0;
+            List<BatchJob> jobs = new ArrayList<>(MAX_BATCH);
+            try {
+                while (true) {
+                    jobs.add(pending.take());
+                    long deadline = System.nanoTime() + BATCH_WINDOW_NANOS;
+                    while (jobs.size() < MAX_BATCH) {
+                        BatchJob next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        jobs.add(next);
+                    }
+                    batches.incrementAndGet();
+                    batchedRequests.addAndGet(jobs.size());
+
+                    // Group by key, every distinct counter of a key is encrypted once per batch
+                    Map<SPNBlockCipher, List<BatchJob>> byKey = new HashMap<>();
+                    for (BatchJob job : jobs) {
+                        byKey.computeIfAbsent(job.spn, k -> new ArrayList<>()).add(job);
+                    }
+                    for (Map.Entry<SPNBlockCipher, List<BatchJob>> group : byKey.entrySet()) {
+                        batch++;
+                        SPNBlockCipher spn = group.getKey();
+                        SPNEvents.CtrBatch event = SPNEvents.begin(SPNEvents.CtrBatch::new);
+                        long groupBytes = 0;
+                        for (BatchJob job : group.getValue()) {
+                            long batchStart = SPNMetrics.ENABLED ? System.nanoTime() : 0;
+                            try {
+                                int counter = job.iv;
+                                for (int i = job.off; i < job.off + job.len; i += 2) {
+                                    if (stamp[counter] != batch) {
+                                        keystream[counter] = spn.encryptBlock(counter);
+                                        stamp[counter] = batch;
+                                    }
+                                    int block = keystream[counter];
+                                    job.data[i] ^= (byte) (block >>> 8);
+                                    job.data[i + 1] ^= (byte) block;
+                                    counter = (counter + 1) & 0xFFFF;
+                                }
+                                if (SPNMetrics.ENABLED) {
+                                    SPNMetrics.record(SPNMetrics.Operation.CTR, SPNMetrics.CipherMode.CTR, SPNMetrics.Mode.BYTES,
+                                        job.len / 2, job.len, System.nanoTime() - batchStart);
+                                }
+                                groupBytes += job.len;
+                                job.done.complete(null);
+                            } catch (RuntimeException e) {
+                                job.done.completeExceptionally(e);
+                            }
+                        }
+                        if (SPNEvents.end(event)) {
+                            event.blocks = groupBytes / 2;
+                            event.bytes = groupBytes;
+                            event.engine = "batcher/" + spn.getClass().getSimpleName();
+                            event.commit();
+                        }
+                    }
+                    jobs.clear();
+                }
+            } catch (InterruptedException e) {
+                pending.drainTo(jobs);
+                for (BatchJob job : jobs) {
+                    job.done.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            if (args.length != 4) {
+                System.err.println("Usage: java SPNService load <url> <requests> <concurrency>");
+                System.exit(2);
+            }
+            runLoadTest(URI.create(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        // Stays open until the JVM exits, the mappings are used by every request
+        SPNCodebookStore store = args.length > 1 ? SPNCodebookStore.open(Path.of(args[1])) : null;
+        SPNService service = new SPNService(port, store);
+        service.start();
+        System.out.println("SPN service listening on http://localhost:" + service.getPort());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.printf("%d batched requests in %d batches%n",
+                service.batchedRequests.get(), service.batches.get());
+            System.out.println("Key cache: " + service.keyStats());
+            System.out.println("Keystream pool: " + service.keystreamPool.stats());
+            service.stop();
+        }));
+    }
+
+    /**
+     * Sends encrypt requests with small random messages from virtual threads and prints the throughput
+     *
+     * A key only has 2^16 counters, so every LOAD_REQUESTS_PER_KEY requests use a new random key.
+     */
+    static void runLoadTest(URI url, int requests, int concurrency) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicLong failures = new AtomicLong();
+        long[] latencies = new long[requests];
+        SecureRandom random = new SecureRandom();
+        URI target = url;
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < requests; i++) {
+                int index = i;
+                if (i % LOAD_REQUESTS_PER_KEY == 0) {
+                    target = URI.create(url + (url.getQuery() == null ? "?" : "&")
+                        + "key=" + String.format("%08x", random.nextInt()));
+                }
+                URI keyedUrl = target;
+                byte[] message = new byte[16 + random.nextInt(112)];
+                random.nextBytes(message);
+                inFlight.acquire();
+                executor.submit(() -> {
+                    long requestStart = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = client.send(
+                            HttpRequest.newBuilder(keyedUrl).POST(HttpRequest.BodyPublishers.ofByteArray(message)).build(),
+                            HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() != 200) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        latencies[index] = System.nanoTime() - requestStart;
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d requests (%d failed) in %.3f s: %.0f requests/s, p50 %.2f ms, p99 %.2f ms%n",
+            requests, failures.get(), nanos / 1e9, requests / (nanos / 1e9),
+            latencies[requests / 2] / 1e6, latencies[Math.min(requests - 1, requests * 99 / 100)] / 1e6);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Lookup tables of the S-box and permutation of the assignment, generated by SPNTablesGenerator
+ *
+ * Loading constants is cheaper at start-up than computing the tables. Do not edit, regenerate
+ * with: java SPNTablesGenerator src/SPNTables.java
+ */
+final class SPNTables {
+    // [table][nibble position][nibble value], see CombinedSPN.SPN
+    static final int[][][] DEFAULT = {
+        // SP encryption
+        {
+            {0x8880, 0x0800, 0x8808, 0x0008, 0x0080, 0x8888, 0x8088, 0x8000, 0x0088, 0x8080, 0x0880, 0x8800, 0x0808, 0x8008, 0x0000, 0x0888},
+            {0x4440, 0x0400, 0x4404, 0x0004, 0x0040, 0x4444, 0x4044, 0x4000, 0x0044, 0x4040, 0x0440, 0x4400, 0x0404, 0x4004, 0x0000, 0x0444},
+            {0x2220, 0x0200, 0x2202, 0x0002, 0x0020, 0x2222, 0x2022, 0x2000, 0x0022, 0x2020, 0x0220, 0x2200, 0x0202, 0x2002, 0x0000, 0x0222},
+            {0x1110, 0x0100, 0x1101, 0x0001, 0x0010, 0x1111, 0x1011, 0x1000, 0x0011, 0x1010, 0x0110, 0x1100, 0x0101, 0x1001, 0x0000, 0x0111}
+        },
+        // S encryption
+        {
+            {0xE000, 0x4000, 0xD000, 0x1000, 0x2000, 0xF000, 0xB000, 0x8000, 0x3000, 0xA000, 0x6000, 0xC000, 0x5000, 0x9000, 0x0000, 0x7000},
+            {0x0E00, 0x0400, 0x0D00, 0x0100, 0x0200, 0x0F00, 0x0B00, 0x0800, 0x0300, 0x0A00, 0x0600, 0x0C00, 0x0500, 0x0900, 0x0000, 0x0700},
+            {0x00E0, 0x0040, 0x00D0, 0x0010, 0x0020, 0x00F0, 0x00B0, 0x0080, 0x0030, 0x00A0, 0x0060, 0x00C0, 0x0050, 0x0090, 0x0000, 0x0070},
+            {0x000E, 0x0004, 0x000D, 0x0001, 0x0002, 0x000F, 0x000B, 0x0008, 0x0003, 0x000A, 0x0006, 0x000C, 0x0005, 0x0009, 0x0000, 0x0007}
+        },
+        // SP decryption
+        {
+            {0x8880, 0x0088, 0x0800, 0x8000, 0x0008, 0x8800, 0x8080, 0x8888, 0x0888, 0x8808, 0x8008, 0x0880, 0x8088, 0x0080, 0x0000, 0x0808},
+            {0x4440, 0x0044, 0x0400, 0x4000, 0x0004, 0x4400, 0x4040, 0x4444, 0x0444, 0x4404, 0x4004, 0x0440, 0x4044, 0x0040, 0x0000, 0x0404},
+            {0x2220, 0x0022, 0x0200, 0x2000, 0x0002, 0x2200, 0x2020, 0x2222, 0x0222, 0x2202, 0x2002, 0x0220, 0x2022, 0x0020, 0x0000, 0x0202},
+            {0x1110, 0x0011, 0x0100, 0x1000, 0x0001, 0x1100, 0x1010, 0x1111, 0x0111, 0x1101, 0x1001, 0x0110, 0x1011, 0x0010, 0x0000, 0x0101}
+        },
+        // S decryption
+        {
+            {0xE000, 0x3000, 0x4000, 0x8000, 0x1000, 0xC000, 0xA000, 0xF000, 0x7000, 0xD000, 0x9000, 0x6000, 0xB000, 0x2000, 0x0000, 0x5000},
+            {0x0E00, 0x0300, 0x0400, 0x0800, 0x0100, 0x0C00, 0x0A00, 0x0F00, 0x0700, 0x0D00, 0x0900, 0x0600, 0x0B00, 0x0200, 0x0000, 0x0500},
+            {0x00E0, 0x0030, 0x0040, 0x0080, 0x0010, 0x00C0, 0x00A0, 0x00F0, 0x0070, 0x00D0, 0x0090, 0x0060, 0x00B0, 0x0020, 0x0000, 0x0050},
+            {0x000E, 0x0003, 0x0004, 0x0008, 0x0001, 0x000C, 0x000A, 0x000F, 0x0007, 0x000D, 0x0009, 0x0006, 0x000B, 0x0002, 0x0000, 0x0005}
+        }
+    };
+
+    private SPNTables() {
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates SPNTables.java, the lookup tables of the assignment's S-box and permutation as constants
+ *
+ * Run it after changing the S-box or the permutation of CombinedSPN.SPN and compile again. The
+ * build (scripts/spn-cli.sh build) only runs the check mode, which fails if the file differs
+ * from the generated source, so it never modifies the sources.
+ *
+ * Usage: java SPNTablesGenerator [--check] [file, default src/SPNTables.java]
+ */
+public final class SPNTablesGenerator {
+    private static final String[] TABLE_NAMES = {"SP encryption", "S encryption", "SP decryption", "S decryption"};
+
+    private SPNTablesGenerator() {
+    }
+
+    /**
+     * Source of SPNTables for the tables [table][position][value]
+     */
+    static String source(int[][][] tables) {
+        StringBuilder text = new StringBuilder();
+        text.append("/**\n");
+        text.append(" * Lookup tables of the S-box and permutation of the assignment, generated by SPNTablesGenerator\n");
+        text.append(" *\n");
+        text.append(" * Loading constants is cheaper at start-up than computing the tables. Do not edit, regenerate\n");
+        text.append(" * with: java SPNTablesGenerator src/SPNTables.java\n");
+        text.append(" */\n");
+        text.append("final class SPNTables {\n");
+        text.append("    // [table][nibble position][nibble value], see CombinedSPN.SPN\n");
+        text.append("    static final int[][][] DEFAULT = {\n");
+        for (int table = 0; table < tables.length; table++) {
+            text.append("        // ").append(TABLE_NAMES[table]).append('\n');
+            text.append("        {\n");
+            for (int position = 0; position < tables[table].length; position++) {
+                text.append("            {");
+                int[] values = tables[table][position];
+                for (int value = 0; value < values.length; value++) {
+                    text.append(String.format("0x%04X", values[value]));
+                    if (value < values.length - 1) {
+                        text.append(", ");
+                    }
+                }
+                text.append(position < tables[table].length - 1 ? "},\n" : "}\n");
+            }
+            text.append(table < tables.length - 1 ? "        },\n" : "        }\n");
+        }
+        text.append("    };\n\n");
+        text.append("    private SPNTables() {\n");
+        text.append("    }\n");
+        text.append("}\n");
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean check = args.length > 0 && args[0].equals("--check");
+        int fileArgument = check ? 1 : 0;
+        Path target = Path.of(args.length > fileArgument ? args[fileArgument] : "src/SPNTables.java");
+        String source = source(CombinedSPN.SPN.blockTables(CombinedSPN.SPN.DEFAULT_SBOX));
+        if (check) {
+            if (!Files.isRegularFile(target) || !Files.readString(target, StandardCharsets.UTF_8).equals(source)) {
+                System.err.println(target + " is outdated, regenerate it with: java SPNTablesGenerator " + target);
+                System.exit(1);
+            }
+            System.out.println(target + " is up to date");
+            return;
+        }
+        Files.writeString(target, source, StandardCharsets.UTF_8);
+        System.out.println("Wrote " + target);
+    }
+}
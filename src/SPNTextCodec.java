@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts text to and from the padded byte stream of the cipher, as UTF-8
+ *
+ * The former conversion wrote Integer.toBinaryString(char) per character, which has more than
+ * 8 bits for characters above U+00FF and shifts all following blocks, and decoded every byte
+ * as one char. This codec encodes the text as UTF-8 with a CharsetEncoder and decodes with a
+ * CharsetDecoder, so every Unicode character (including surrogate pairs) survives the round trip.
+ * For ASCII text the bytes and therefore the ciphertexts are unchanged.
+ *
+ * Encoder and decoder work on two buffers that are allocated once per codec. Text is encoded
+ * chunk by chunk into the byte buffer, which goes through the CTR keystream straight to a sink,
+ * and ciphertext is decrypted and decoded chunk by chunk into an Appendable. The memory use
+ * does not depend on the size of the document.
+ *
+ * Padding is the one of the assignment: a '1' bit and zeros up to the next 16-bit block, for
+ * byte aligned data the bytes 0x80 or 0x80 0x00. Decryption rejects a last block of any other
+ * form, like SPNFileCipher does; binaryToText removes everything from the last set bit on like
+ * the former conversion.
+ *
+ * A codec is not thread safe, every thread needs its own instance.
+ */
+public final class SPNTextCodec {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Receives the ciphertext of encrypt, the array is reused after the call returns
+     */
+    @FunctionalInterface
+    public interface ByteSink {
+        void accept(byte[] data, int off, int len) throws IOException;
+    }
+
+    /**
+     * Encodes text as UTF-8, pads it and encrypts it in CTR mode
+     *
+     * Block i is XORed with the encrypted counter iv + i, like SPN.ctr and the GUI do it. The
+     * sink receives the ciphertext in chunks of even length, without the IV.
+     *
+     * @return Number of 16-bit blocks written
+     */
+    public long encrypt(CharSequence text, SPNBlockCipher cipher, int iv, ByteSink sink) throws IOException {
+        long[] blocks = new long[1];
+        encode(text, (data, off, len) -> {
+            cipher.ctrXor(iv, blocks[0], data, off, len);
+            blocks[0] += len / 2;
+            sink.accept(data, off, len);
+        });
+        return blocks[0];
+    }
+
+    /**
+     * Starts an incremental CTR decryption whose text is appended to out
+     *
+     * The decryption uses the buffers of this codec, so only one may be active at a time.
+     */
+    public Decryption decrypt(SPNBlockCipher cipher, int iv, Appendable out) {
+        decoder.reset();
+        bytes.clear();
+        return new Decryption(cipher, iv, out);
+    }
+
+    /**
+     * Decrypts a complete CTR ciphertext without IV and returns the text
+     */
+    public String decrypt(SPNBlockCipher cipher, int iv, byte[] data, int off, int len) {
+        StringBuilder text = new StringBuilder(len);
+        Decryption decryption = decrypt(cipher, iv, text);
+        decryption.update(data, off, len);
+        decryption.finish();
+        return text.toString();
+    }
+
+    /**
+     * Encodes the characters start..end of the text as UTF-8 into target, without padding
+     *
+     * The result equals the corresponding bytes of the whole text as long as the range does not
+     * split a surrogate pair. A character takes at most 3 bytes (a surrogate pair 4 bytes for
+     * 2 characters), so target needs room for 3 * (end - start) bytes.
+     *
+     * @return Number of bytes written
+     */
+    public int encode(CharSequence text, int start, int end, byte[] target, int off) {
+        ByteBuffer output = ByteBuffer.wrap(target, off, target.length - off);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(text, start, end), output, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(output);
+        }
+        if (!result.isUnderflow()) {
+            throw new IllegalArgumentException("Target array too small for the encoded text");
+        }
+        return output.position() - off;
+    }
+
+    /**
+     * Number of blocks encrypt produces for the text, computed without encoding it
+     *
+     * Counts the UTF-8 bytes like the encoder: a lone surrogate is replaced by one byte '?'.
+     */
+    public static long encodedBlocks(CharSequence text) {
+        long bytes = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        // The padding adds one or two bytes up to the next block
+        return bytes / 2 + 1;
+    }
+
+    /**
+     * Removes the padding of a decrypted binary string and decodes the UTF-8 bytes
+     *
+     * Like before, everything from the last '1' on is padding and an incomplete byte before it
+     * is ignored. Invalid UTF-8 (e.g. after decryption with a wrong key) becomes U+FFFD.
+     */
+    public String binaryToText(CharSequence binary) {
+        int end = binary.length() - 1;
+        while (end >= 0 && binary.charAt(end) != '1') {
+            end--;
+        }
+        if (end < 0) {
+            end = binary.length();
+        }
+        end -= end % 8;
+
+        StringBuilder text = new StringBuilder(end / 8);
+        decoder.reset();
+        bytes.clear();
+        for (int i = 0; i < end; i += 8) {
+            int value = 0;
+            for (int bit = i; bit < i + 8; bit++) {
+                value = (value << 1) | (binary.charAt(bit) == '1' ? 1 : 0);
+            }
+            bytes.put((byte) value);
+            if (!bytes.hasRemaining()) {
+                decodeBuffer(text, false);
+            }
+        }
+        decodeBuffer(text, true);
+        return text.toString();
+    }
+
+    /**
+     * An incremental CTR decryption, created by SPNTextCodec.decrypt
+     *
+     * The last block is held back until finish, because only the end of the message tells
+     * which bytes are padding.
+     */
+    public final class Decryption {
+        private final SPNBlockCipher cipher;
+        private final int iv;
+        private final Appendable out;
+        private long blocks;
+        private boolean finished;
+
+        private Decryption(SPNBlockCipher cipher, int iv, Appendable out) {
+            this.cipher = cipher;
+            this.iv = iv;
+            this.out = out;
+        }
+
+        /**
+         * Decrypts the next part of the ciphertext and appends the decoded text
+         *
+         * @param len Number of bytes, must be even
+         */
+        public void update(byte[] data, int off, int len) {
+            if ((len & 1) != 0) {
+                throw new IllegalArgumentException("Length must be a multiple of the block size");
+            }
+            if (finished) {
+                throw new IllegalStateException("Decryption already finished");
+            }
+            while (len > 0) {
+                // The buffer keeps at most an incomplete character and the held back block,
+                // the space for new data is always even
+                int count = Math.min(len, bytes.remaining() & ~1);
+                int start = bytes.position();
+                bytes.put(data, off, count);
+                cipher.ctrXor(iv, blocks, bytes.array(), start, count);
+                blocks += count / 2;
+                off += count;
+                len -= count;
+
+                bytes.flip();
+                int limit = bytes.limit();
+                bytes.limit(limit - 2);
+                decodeAvailable(out, false);
+                bytes.limit(limit);
+                bytes.compact();
+            }
+        }
+
+        /**
+         * Removes the padding and decodes the rest of the text
+         *
+         * @throws IllegalArgumentException if there is no block or the last block is not a valid
+         *                                  padding (wrong key or damaged ciphertext)
+         */
+        public void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            bytes.flip();
+            int end = bytes.limit();
+            // The held back last block is x 0x80 or 0x80 0x00
+            if (end - bytes.position() < 2) {
+                bytes.clear();
+                throw new IllegalArgumentException("Ciphertext contains no blocks");
+            } else if ((bytes.get(end - 1) & 0xFF) == 0x80) {
+                bytes.limit(end - 1);
+            } else if ((bytes.get(end - 2) & 0xFF) == 0x80 && bytes.get(end - 1) == 0) {
+                bytes.limit(end - 2);
+            } else {
+                bytes.clear();
+                throw new IllegalArgumentException("Invalid padding, wrong key or damaged ciphertext");
+            }
+            decodeAvailable(out, true);
+            bytes.clear();
+        }
+
+        /**
+         * Number of ciphertext blocks decrypted so far
+         */
+        public long blocks() {
+            return blocks;
+        }
+    }
+
+    // UTF-8 bytes of the text followed by the padding, in chunks of even length
+    private void encode(CharSequence text, ByteSink sink) throws IOException {
+        encodeBytes(text, new ByteSink() {
+            // An odd byte at the end of a chunk waits for the next chunk
+            private boolean carry;
+            private byte carried;
+
+            @Override
+            public void accept(byte[] data, int off, int len) throws IOException {
+                boolean end = len == 0;
+                if (carry) {
+                    // The buffer was refilled, the odd byte moves in front of the chunk
+                    off--;
+                    len++;
+                    data[off] = carried;
+                    carry = false;
+                }
+                if (end) {
+                    // The padding completes the last block: 0x80 after an odd byte, else 0x80 0x00
+                    data[off + len] = (byte) 0x80;
+                    if (len == 0) {
+                        data[off + 1] = 0;
+                    }
+                    sink.accept(data, off, 2);
+                    return;
+                }
+                if ((len & 1) != 0) {
+                    carry = true;
+                    carried = data[off + len - 1];
+                    len--;
+                }
+                sink.accept(data, off, len);
+            }
+        });
+    }
+
+    // Encodes the text chunk by chunk, every chunk starts at index 1 of the buffer array, so a
+    // carried byte fits in front. After the last chunk the sink is called with an empty range.
+    private void encodeBytes(CharSequence text, ByteSink sink) throws IOException {
+        encoder.reset();
+        CharBuffer input = CharBuffer.wrap(text);
+        byte[] array = bytes.array();
+        boolean flushed = false;
+        while (!flushed) {
+            // Two bytes are reserved for the carried byte and the padding
+            bytes.clear().position(1).limit(BUFFER_SIZE - 1);
+            CoderResult result = encoder.encode(input, bytes, true);
+            if (result.isUnderflow()) {
+                result = encoder.flush(bytes);
+                flushed = result.isUnderflow();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (bytes.position() > 1) {
+                sink.accept(array, 1, bytes.position() - 1);
+            }
+        }
+        sink.accept(array, 1, 0);
+    }
+
+    // Decodes the bytes of the filled buffer into out
+    private void decodeBuffer(Appendable out, boolean endOfInput) {
+        bytes.flip();
+        decodeAvailable(out, endOfInput);
+        bytes.compact();
+    }
+
+    // Decodes the readable bytes of the buffer, an incomplete character stays in the buffer
+    // unless the input ends
+    private void decodeAvailable(Appendable out, boolean endOfInput) {
+        try {
+            while (true) {
+                CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                if (result.isOverflow()) {
+                    drain(out);
+                    continue;
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                break;
+            }
+            if (endOfInput) {
+                while (decoder.flush(chars).isOverflow()) {
+                    drain(out);
+                }
+            }
+            drain(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain(Appendable out) throws IOException {
+        chars.flip();
+        out.append(chars);
+        chars.clear();
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Checks that all fast engines compute exactly the results of the reference implementation
+ *
+ * The reference is the string based SPN.encrypt and SPN.decrypt. For every key and round count
+ * all 2^16 plaintexts are encrypted with the reference, which must also decrypt them again.
+ * Then every registered engine has to produce the same ciphertexts and decrypt them back to
+ * the plaintexts. Keys, blocks and engines are checked in parallel on all cores.
+ *
+ * For the first mismatch the verifier prints the state after the S-box of every round, of the
+ * reference and of the engine if it can trace its rounds. The reference states are computed
+ * with the string path as well: after r rounds the state before the key addition is the output
+ * of an SPN with r rounds and the same key, XORed with round key r.
+ *
+ * Usage: java SPNVerifier [random keys] [seed], exit code 1 if an engine differs
+ */
+public final class SPNVerifier {
+    private static final int BLOCKS = 1 << 16;
+    private static final int MAX_ROUNDS = 8;
+
+    /**
+     * Creates the cipher of an engine for a key and round count
+     */
+    public interface Factory {
+        /**
+         * @return The cipher, or null if the engine does not support the round count
+         */
+        SPNBlockCipher create(int[] key, int rounds) throws Exception;
+    }
+
+    /**
+     * Reports the rounds of an engine for one block, for the diff of a mismatch
+     */
+    public interface Tracer {
+        void trace(int[] key, int rounds, int block, SPNRoundObserver observer);
+    }
+
+    /**
+     * An engine under test, the tracer may be null
+     */
+    public record Engine(String name, Factory factory, Tracer tracer) {
+    }
+
+    /**
+     * A block for which an engine differs from the reference
+     */
+    public record Mismatch(String engine, int[] key, int rounds, int block, boolean decryption, int expected, int actual) {
+        @Override
+        public String toString() {
+            return String.format("%s, key %s, %d rounds: %s(%s) = %s, expected %s", engine, keyText(key), rounds,
+                decryption ? "decrypt" : "encrypt", toBinary(block), toBinary(actual), toBinary(expected));
+        }
+    }
+
+    /**
+     * Result of a verification run
+     */
+    public record Result(long checkedBlocks, int configurations, List<Mismatch> mismatches) {
+        public boolean passed() {
+            return mismatches.isEmpty();
+        }
+    }
+
+    private SPNVerifier() {
+    }
+
+    /**
+     * All block engines of the project
+     */
+    public static List<Engine> defaultEngines() {
+        return List.of(
+            new Engine("SPN.encryptBlock", (key, rounds) -> new CombinedSPN.SPN(rounds, 4, 4, key),
+                (key, rounds, block, observer) -> new CombinedSPN.SPN(rounds, 4, 4, key).encryptBlock(block, observer)),
+            new Engine("SPNExpandedKey", (key, rounds) ->
+                rounds == 4 ? new SPNExpandedKey(SPNExpandedKey.pack(key), true) : null, null),
+            new Engine("SPNCipherCompiler", (key, rounds) ->
+                SPNCipherCompiler.generate(new CombinedSPN.SPN(rounds, 4, 4, key)), null),
+            new Engine("SPNEngine", (key, rounds) -> SPNEngine.withAssignmentSBox(4, rounds, key).asBlockCipher(),
+                (key, rounds, block, observer) -> SPNEngine.withAssignmentSBox(4, rounds, key).encryptBlock(block, observer)));
+    }
+
+    /**
+     * Edge case keys (all zero, all ones, alternating bits, single bits, the keys of the
+     * assignment) with every round count, and random keys with 4 rounds
+     */
+    public static List<int[]> testKeys(int randomKeys, long seed) {
+        List<int[]> digits = new ArrayList<>();
+        digits.add(new int[]{0});
+        digits.add(new int[]{0xF});
+        digits.add(new int[]{0x5, 0xA});
+        digits.add(new int[]{0x3, 0xA, 0x9, 0x4, 0xD, 0x6, 0x3, 0xF});
+        digits.add(new int[]{0x1, 0x1, 0x2, 0x8, 0x8, 0xC, 0x0, 0x0});
+        List<int[]> keys = new ArrayList<>();
+        for (int[] pattern : digits) {
+            int[] key = new int[4 + MAX_ROUNDS];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = pattern[i % pattern.length];
+            }
+            keys.add(key);
+        }
+        for (int bit = 0; bit < 32; bit += 7) {
+            int[] key = new int[4 + MAX_ROUNDS];
+            key[bit / 4] = 8 >>> (bit % 4);
+            keys.add(key);
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < randomKeys; i++) {
+            int[] key = new int[4 + MAX_ROUNDS];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = random.nextInt(16);
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Verifies the engines for the given keys
+     *
+     * @param keys Keys with at least 4 + maxRounds digits, shorter keys are only checked with fewer rounds
+     * @param edgeCases Number of keys at the start of the list that are checked with every round count
+     *                  from 1 to MAX_ROUNDS, the others only with 4 rounds
+     * @param engines The engines under test
+     */
+    public static Result verify(List<int[]> keys, int edgeCases, List<Engine> engines) {
+        List<int[]> configurations = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            int maxRounds = Math.min(MAX_ROUNDS, keys.get(i).length - 4);
+            for (int rounds = 1; rounds <= maxRounds; rounds++) {
+                if (i < edgeCases || rounds == 4) {
+                    configurations.add(new int[]{i, rounds});
+                }
+            }
+        }
+        ConcurrentLinkedQueue<Mismatch> mismatches = new ConcurrentLinkedQueue<>();
+        AtomicLong checked = new AtomicLong();
+        configurations.parallelStream().forEach(configuration -> {
+            int[] key = Arrays.copyOf(keys.get(configuration[0]), 4 + configuration[1]);
+            int rounds = configuration[1];
+            int[] expected = reference(key, rounds, mismatches);
+            for (Engine engine : engines) {
+                SPNBlockCipher cipher;
+                try {
+                    cipher = engine.factory().create(key, rounds);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Engine " + engine.name() + " failed: " + e, e);
+                }
+                if (cipher != null) {
+                    check(engine, cipher, key, rounds, expected, mismatches);
+                    checked.addAndGet(BLOCKS);
+                }
+            }
+        });
+        List<Mismatch> sorted = new ArrayList<>(mismatches);
+        sorted.sort(Comparator.comparing(Mismatch::engine).thenComparing(Mismatch::rounds).thenComparing(Mismatch::block));
+        return new Result(checked.get(), configurations.size(), sorted);
+    }
+
+    // Encrypts all blocks with the string path and checks that its decryption inverts it
+    private static int[] reference(int[] key, int rounds, ConcurrentLinkedQueue<Mismatch> mismatches) {
+        CombinedSPN.SPN spn = new CombinedSPN.SPN(rounds, 4, 4, key);
+        int[] expected = new int[BLOCKS];
+        IntStream.range(0, BLOCKS).parallel().forEach(block -> {
+            int encrypted = Integer.parseInt(spn.encrypt(toBinary(block)), 2);
+            expected[block] = encrypted;
+            int decrypted = Integer.parseInt(spn.decrypt(toBinary(encrypted)), 2);
+            if (decrypted != block) {
+                mismatches.add(new Mismatch("SPN.decrypt (reference)", key, rounds, encrypted, true, block, decrypted));
+            }
+        });
+        return expected;
+    }
+
+    // Compares one engine with the reference table, records the first wrong block per direction
+    private static void check(Engine engine, SPNBlockCipher cipher, int[] key, int rounds, int[] expected,
+                              ConcurrentLinkedQueue<Mismatch> mismatches) {
+        IntStream.range(0, BLOCKS).parallel()
+            .filter(block -> cipher.encryptBlock(block) != expected[block])
+            .findFirst()
+            .ifPresent(block -> mismatches.add(
+                new Mismatch(engine.name(), key, rounds, block, false, expected[block], cipher.encryptBlock(block))));
+        IntStream.range(0, BLOCKS).parallel()
+            .filter(block -> cipher.decryptBlock(expected[block]) != block)
+            .findFirst()
+            .ifPresent(block -> mismatches.add(
+                new Mismatch(engine.name(), key, rounds, expected[block], true, block, cipher.decryptBlock(expected[block]))));
+    }
+
+    /**
+     * Formats the state after the S-box of every round for the reference and, if it can be
+     * traced, the engine of an encryption mismatch
+     */
+    public static String roundDiff(Mismatch mismatch, List<Engine> engines) {
+        int[] key = mismatch.key();
+        int rounds = mismatch.rounds();
+        int block = mismatch.block();
+        String[] reference = new String[rounds + 1];
+        reference[0] = CombinedSPN.Helper.xorBinaryStrings(toBinary(block), roundKey(key, 0));
+        for (int round = 1; round <= rounds; round++) {
+            // Output of the first round rounds without the key of the last one
+            String output = new CombinedSPN.SPN(round, 4, 4, Arrays.copyOf(key, 4 + round)).encrypt(toBinary(block));
+            reference[round] = CombinedSPN.Helper.xorBinaryStrings(output, roundKey(key, round));
+        }
+
+        String[] actual = new String[rounds + 1];
+        Tracer tracer = engines.stream().filter(engine -> engine.name().equals(mismatch.engine()))
+            .map(Engine::tracer).findFirst().orElse(null);
+        if (tracer != null && !mismatch.decryption()) {
+            tracer.trace(key, rounds, block, (round, afterSBox, afterPermutation, afterKey) ->
+                actual[round] = toBinary(round == 0 ? afterKey : afterSBox));
+        }
+
+        StringBuilder text = new StringBuilder();
+        text.append("Round  Reference (after S-box)  Engine\n");
+        boolean marked = false;
+        for (int round = 0; round <= rounds; round++) {
+            text.append(String.format("%5d  %-23s  %s", round, reference[round], actual[round] == null ? "-" : actual[round]));
+            if (!marked && actual[round] != null && !actual[round].equals(reference[round])) {
+                text.append("  <-- first difference");
+                marked = true;
+            }
+            text.append('\n');
+        }
+        if (actual[0] == null) {
+            text.append("(the engine cannot trace its rounds)\n");
+        }
+        return text.toString();
+    }
+
+    private static String roundKey(int[] key, int round) {
+        StringBuilder text = new StringBuilder(16);
+        for (int i = round; i < round + 4; i++) {
+            text.append(Integer.toBinaryString(key[i] | 0x10).substring(1));
+        }
+        return text.toString();
+    }
+
+    private static String toBinary(int block) {
+        return Integer.toBinaryString(block | 0x10000).substring(1);
+    }
+
+    private static String keyText(int[] key) {
+        StringBuilder text = new StringBuilder();
+        for (int digit : key) {
+            text.append(Integer.toHexString(digit));
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) {
+        int randomKeys = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        List<Engine> engines = defaultEngines();
+        List<int[]> keys = testKeys(randomKeys, seed);
+        int edgeCases = keys.size() - randomKeys;
+
+        long start = System.nanoTime();
+        Result result = verify(keys, edgeCases, engines);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Checked %d blocks of %d engines in %d configurations (seed %d) in %.1f s%n",
+            result.checkedBlocks(), engines.size(), result.configurations(), seed, seconds);
+        if (result.passed()) {
+            System.out.println("PASSED");
+            return;
+        }
+        Mismatch first = result.mismatches().get(0);
+        System.out.println("FAILED, " + result.mismatches().size() + " mismatches, first: " + first);
+        System.out.print(roundDiff(first, engines));
+        System.exit(1);
+    }
+}
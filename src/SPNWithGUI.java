@@ -1,9 +1,31 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
 import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * SPN Encryption/Decryption Implementation with Enhanced GUI
@@ -41,13 +63,52 @@ public class SPNWithGUI extends JFrame {
     private JButton copyDecryptedButton;
     private JCheckBox showVerboseOutput;
     private JLabel statusLabel;
-
-    private SPN spn;
+    private JPanel tracePanel;
+    private JTable traceTable;
+    private JCheckBox liveEncryption;
+
+    // State of the live mode: the padded UTF-8 plaintext and ciphertext shown last, the encrypted
+    // counters computed so far and the UTF-8 offset of every LIVE_CHECKPOINT-th character
+    private static final int LIVE_DEBOUNCE_MILLIS = 150;
+    private static final int LIVE_CHECKPOINT = 1024;
+    private Timer liveTimer;
+    private boolean liveCiphertextShown = false;
+    private byte[] livePlain = new byte[0];
+    private byte[] liveCipher = new byte[0];
+    private int liveLength;
+    private int liveChars;
+    private int[] liveOffsets = new int[1];
+    private int[] liveKeystream = new int[0];
+    private int liveKeystreamLength;
+    // Smallest character offset changed since the last update, taken from the document events
+    private int liveChangedFrom = Integer.MAX_VALUE;
+    private byte[] liveScratch = new byte[0];
+    private final transient Segment liveSegment = new Segment();
+    // Every live session gets a fresh random IV, the preview is not registered with the nonce service
+    // and is encrypted again under a registered IV before it is copied (see copyEncryptedText)
+    private int liveIv;
+    // Trace of the live preview, updated row by row while it is shown; null if the table shows something else
+    private BlockTraceTableModel liveTraceModel;
+
+    // Random IVs for texts and files, refuses IVs whose counters were already used with the (fixed) key
+    private static final String NONCE_KEY_ID = "gui";
+    private final transient SPNNonceService nonceService = SPNNonceService.shared();
+
+    // Block level cipher with the default key, used for the texts, the trace table and for files
+    private final transient CombinedSPN.SPN blockSpn = new CombinedSPN.SPN(4, 4, 4);
+
+    // File encryption runs in the background, only one file at a time
+    private final transient SPNFileCipher fileCipher = new SPNFileCipher(blockSpn);
+
+    // UTF-8 conversion of the text areas, only used on the event dispatch thread
+    private final transient SPNTextCodec textCodec = new SPNTextCodec();
+    private JButton encryptFileButton;
+    private JButton decryptFileButton;
+    private JButton cancelFileButton;
+    private JCheckBox compressFiles;
+    private transient FileJob fileJob;
 
     public SPNWithGUI() {
-        // Initialize SPN
-        spn = new SPN(4, 4, 4);
-
         // Set up the JFrame
         setTitle("SPN Encryption/Decryption Tool");
         setSize(800, 700);
@@ -76,6 +137,24 @@ public class SPNWithGUI extends JFrame {
         // Create input panel
         JPanel inputPanel = createTextPanel("Eingabetext", "Geben Sie hier den zu verschlüsselnden Text ein:", true);
         inputTextArea = createTextArea();
+        inputTextArea.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                scheduleLiveEncryption(e.getOffset());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                scheduleLiveEncryption(e.getOffset());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // Attribute changes do not modify the text
+            }
+        });
+        liveTimer = new Timer(LIVE_DEBOUNCE_MILLIS, e -> updateLiveEncryption());
+        liveTimer.setRepeats(false);
         inputPanel.add(new JScrollPane(inputTextArea), BorderLayout.CENTER);
 
         // Create encrypted text panel
@@ -83,12 +162,25 @@ public class SPNWithGUI extends JFrame {
             createTextPanel("Verschlüsselter Text (Binär)", "Der verschlüsselte Text im binären Format:", false);
         encryptedTextArea = createTextArea();
         encryptedTextArea.setEditable(false);
+        // Copying a live preview with the keyboard goes through copyEncryptedText as well
+        Action copyEncrypted = new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (liveCiphertextShown) {
+                    copyEncryptedText();
+                } else {
+                    encryptedTextArea.copy();
+                }
+            }
+        };
+        encryptedTextArea.getActionMap().put(DefaultEditorKit.copyAction, copyEncrypted);
+        encryptedTextArea.getActionMap().put(TransferHandler.getCopyAction().getValue(Action.NAME), copyEncrypted);
         encryptedPanel.add(new JScrollPane(encryptedTextArea), BorderLayout.CENTER);
 
         // Add copy button for encrypted text
         copyEncryptedButton = new JButton("Kopieren");
         styleButton(copyEncryptedButton, new Color(70, 70, 70));  // Dunklere Farbe für besseren Kontrast
-        copyEncryptedButton.addActionListener(e -> copyToClipboard(encryptedTextArea.getText()));
+        copyEncryptedButton.addActionListener(e -> copyEncryptedText());
         copyEncryptedButton.setEnabled(false);
         JPanel encryptedButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         encryptedButtonPanel.setBackground(BACKGROUND_COLOR);
@@ -111,8 +203,15 @@ public class SPNWithGUI extends JFrame {
         decryptedButtonPanel.add(copyDecryptedButton);
         decryptedPanel.add(decryptedButtonPanel, BorderLayout.SOUTH);
 
+        // Create trace panel for the verbose output (one table row per block, computed on demand)
+        tracePanel = createTextPanel("Blockverlauf (CTR)", "Zwischenzustände pro Block:", false);
+        traceTable = createTraceTable();
+        tracePanel.add(new JScrollPane(traceTable), BorderLayout.CENTER);
+        tracePanel.setVisible(false);
+
         // Create action buttons panel
         JPanel actionPanel = createActionPanel();
+        JPanel fileActionPanel = createFileActionPanel();
 
         // Create status panel
         JPanel statusPanel = createStatusPanel();
@@ -122,9 +221,21 @@ public class SPNWithGUI extends JFrame {
         contentPanel.add(Box.createRigidArea(new Dimension(0, 10)));
         contentPanel.add(encryptedPanel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 10)));
+        contentPanel.add(tracePanel);
+        contentPanel.add(Box.createRigidArea(new Dimension(0, 10)));
         contentPanel.add(decryptedPanel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 10)));
         contentPanel.add(actionPanel);
+        contentPanel.add(fileActionPanel);
+
+        // Files can be dropped anywhere on the window, text drops into the text areas keep working
+        contentPanel.setTransferHandler(new FileDropHandler(null, this::handleDroppedFiles));
+        inputTextArea.setTransferHandler(
+            new FileDropHandler(inputTextArea.getTransferHandler(), this::handleDroppedFiles));
+        encryptedTextArea.setTransferHandler(
+            new FileDropHandler(encryptedTextArea.getTransferHandler(), this::handleDroppedFiles));
+        decryptedTextArea.setTransferHandler(
+            new FileDropHandler(decryptedTextArea.getTransferHandler(), this::handleDroppedFiles));
 
         // Add all components to the frame
         add(headerPanel, BorderLayout.NORTH);
@@ -195,6 +306,32 @@ public class SPNWithGUI extends JFrame {
         return textArea;
     }
 
+    private JTable createTraceTable() {
+        JTable table = new JTable(new BlockTraceTableModel(blockSpn, new byte[0], 0));
+        table.setFont(TEXT_FONT);
+        // A fixed row height lets the table map the visible area to row indices without measuring rows
+        table.setRowHeight(table.getFontMetrics(TEXT_FONT).getHeight() + 4);
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        table.setFillsViewportHeight(true);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.setPreferredScrollableViewportSize(new Dimension(700, 150));
+        return table;
+    }
+
+    private void showTrace(byte[] ciphertext, int iv) {
+        showTrace(new BlockTraceTableModel(blockSpn, ciphertext, iv));
+        liveTraceModel = null;
+    }
+
+    private void showTrace(BlockTraceTableModel model) {
+        traceTable.setModel(model);
+        for (int i = 0; i < traceTable.getColumnCount(); i++) {
+            traceTable.getColumnModel().getColumn(i).setPreferredWidth(i == 0 ? 70 : 170);
+        }
+        tracePanel.setVisible(true);
+        tracePanel.revalidate();
+    }
+
     private JPanel createActionPanel() {
         JPanel panel = new JPanel();
         panel.setLayout(new FlowLayout(FlowLayout.CENTER, 20, 10));
@@ -218,12 +355,30 @@ public class SPNWithGUI extends JFrame {
         showVerboseOutput.setBackground(BACKGROUND_COLOR);
         showVerboseOutput.setForeground(TEXT_COLOR);
         showVerboseOutput.setSelected(true);  // Per default aktiviert
+        showVerboseOutput.addActionListener(e -> {
+            if (!showVerboseOutput.isSelected()) {
+                tracePanel.setVisible(false);
+            }
+        });
 
         panel.add(encryptButton);
         panel.add(decryptButton);
         panel.add(resetButton);
         panel.add(showVerboseOutput);
 
+        // Live mode: re-encrypts the changed blocks while typing
+        liveEncryption = new JCheckBox("Live-Verschlüsselung");
+        liveEncryption.setFont(LABEL_FONT);
+        liveEncryption.setBackground(BACKGROUND_COLOR);
+        liveEncryption.setForeground(TEXT_COLOR);
+        liveEncryption.addActionListener(e -> {
+            liveCiphertextShown = false;
+            if (liveEncryption.isSelected()) {
+                updateLiveEncryption();
+            }
+        });
+        panel.add(liveEncryption);
+
         return panel;
     }
 
@@ -235,84 +390,312 @@ public class SPNWithGUI extends JFrame {
         statusLabel = new JLabel("Bereit");
         statusLabel.setFont(LABEL_FONT);
 
+        cancelFileButton = new JButton("Abbrechen");
+        cancelFileButton.setFont(LABEL_FONT);
+        cancelFileButton.setVisible(false);
+        cancelFileButton.addActionListener(e -> {
+            if (fileJob != null && fileJob.cancel(true)) {
+                cancelFileButton.setEnabled(false);
+            }
+        });
+
         panel.add(statusLabel, BorderLayout.WEST);
+        panel.add(cancelFileButton, BorderLayout.EAST);
 
         return panel;
     }
 
-    private void styleButton(JButton button, Color color) {
-        button.setBackground(color);
-        button.setForeground(Color.WHITE);
-        button.setFont(LABEL_FONT);
-        button.setFocusPainted(false);
-        button.setBorderPainted(false);
-        button.setPreferredSize(new Dimension(140, 40));
-        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+    private JPanel createFileActionPanel() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new FlowLayout(FlowLayout.CENTER, 20, 0));
+        panel.setBackground(BACKGROUND_COLOR);
+
+        encryptFileButton = new JButton("Datei verschl.");
+        decryptFileButton = new JButton("Datei entschl.");
+        styleButton(encryptFileButton, PRIMARY_COLOR);
+        styleButton(decryptFileButton, new Color(60, 100, 140));
+        encryptFileButton.setToolTipText("Datei als Container (.spn) verschlüsseln, Dateien können auch ins Fenster gezogen werden"
+            + " (höchstens 128 KiB verschlüsselte Daten, der Zähler hat 16 Bit)");
+        decryptFileButton.setToolTipText("Container (.spn) entschlüsseln");
+
+        encryptFileButton.addActionListener(e -> chooseFile(true));
+        decryptFileButton.addActionListener(e -> chooseFile(false));
+
+        // Deflates the file before encryption, decryption detects compressed containers itself
+        compressFiles = new JCheckBox("Komprimieren");
+        compressFiles.setFont(LABEL_FONT);
+        compressFiles.setBackground(BACKGROUND_COLOR);
+        compressFiles.setForeground(TEXT_COLOR);
+        compressFiles.setToolTipText("Datei vor der Verschlüsselung komprimieren (spart bei Text- und Logdateien Zeit und Platz,"
+            + " größere Dateien passen so in die 128 KiB eines Containers)");
+
+        // The 16-bit counter limits a container, see SPNFileCipher
+        JLabel limitLabel = new JLabel("max. 128 KiB je Container");
+        limitLabel.setFont(LABEL_FONT);
+        limitLabel.setForeground(TEXT_COLOR);
+
+        panel.add(encryptFileButton);
+        panel.add(decryptFileButton);
+        panel.add(compressFiles);
+        panel.add(limitLabel);
+
+        return panel;
     }
 
-    private void encryptText() {
-        String inputText = inputTextArea.getText();
-        if (inputText.isEmpty()) {
-            updateStatus("Fehler: Bitte geben Sie Text zum Verschlüsseln ein.", true);
+    private void chooseFile(boolean encrypt) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle(encrypt ? "Datei verschlüsseln" : "Container entschlüsseln");
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            startFileJob(chooser.getSelectedFile().toPath(), encrypt);
+        }
+    }
+
+    // Dropped containers are decrypted, all other files are encrypted
+    private void handleDroppedFiles(List<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        if (files.size() > 1) {
+            updateStatus("Bitte nur eine Datei auf einmal ablegen", true);
             return;
         }
+        Path source = files.get(0).toPath();
+        startFileJob(source, !source.getFileName().toString().endsWith(SPNFileCipher.EXTENSION));
+    }
 
-        try {
-            // Convert text to binary (ASCII)
-            String binaryText = textToBinary(inputText);
+    private void startFileJob(Path source, boolean encrypt) {
+        if (fileJob != null) {
+            updateStatus("Fehler: Es wird bereits eine Datei verarbeitet.", true);
+            return;
+        }
+        if (!Files.isRegularFile(source)) {
+            updateStatus("Fehler: " + source.getFileName() + " ist keine Datei.", true);
+            return;
+        }
+        Path target = encrypt ? SPNFileCipher.encryptedPath(source) : SPNFileCipher.decryptedPath(source);
+        fileJob = new FileJob(source, target, encrypt, compressFiles.isSelected());
+        encryptFileButton.setEnabled(false);
+        decryptFileButton.setEnabled(false);
+        cancelFileButton.setVisible(true);
+        fileJob.execute();
+    }
 
-            if (showVerboseOutput.isSelected()) {
-                encryptedTextArea.setText("Original (als Binär): " + binaryText + "\n\n");
-            } else {
-                encryptedTextArea.setText("");
+    private void fileJobFinished(FileJob job) {
+        // Called twice for some cancelled jobs, see FileJob
+        if (fileJob != job) {
+            return;
+        }
+        fileJob = null;
+        encryptFileButton.setEnabled(true);
+        decryptFileButton.setEnabled(true);
+        cancelFileButton.setVisible(false);
+        cancelFileButton.setEnabled(true);
+    }
+
+    private static String formatBytes(double bytes) {
+        String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", bytes, units[unit]);
+    }
+
+    /**
+     * Encrypts or decrypts a file in the background and reports throughput and ETA in the status bar
+     *
+     * done() runs as soon as the job is cancelled, while the background thread may still be
+     * deleting the partial target. A cancelled job therefore only finishes (and the buttons are
+     * enabled again) once the background thread has exited, or if it never started.
+     */
+    private class FileJob extends SwingWorker<Void, long[]> {
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int EXITED = 2;
+
+        private final Path source;
+        private final Path target;
+        private final boolean encrypt;
+        private final boolean compress;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        FileJob(Path source, Path target, boolean encrypt, boolean compress) {
+            this.source = source;
+            this.target = target;
+            this.encrypt = encrypt;
+            this.compress = compress;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            if (!state.compareAndSet(NEW, RUNNING)) {
+                return null;
+            }
+            SPNFileCipher.Progress progress = (processed, total) -> publish(new long[]{processed, total});
+            try {
+                if (encrypt) {
+                    fileCipher.encrypt(source, target, nonceService, NONCE_KEY_ID, compress, progress);
+                } else {
+                    fileCipher.decrypt(source, target, progress);
+                }
+            } finally {
+                state.set(EXITED);
+                if (isCancelled()) {
+                    SwingUtilities.invokeLater(this::cancelled);
+                }
             }
+            return null;
+        }
 
-            // Add padding according to specifications (add a '1' and then zeros until length is divisible by 16)
-            binaryText += "1";
-            while (binaryText.length() % 16 != 0) {
-                binaryText += "0";
+        @Override
+        protected void process(List<long[]> updates) {
+            // Only the latest update is shown, the others are outdated already
+            long[] latest = updates.get(updates.size() - 1);
+            long processed = latest[0];
+            long total = latest[1];
+            double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+            double bytesPerSecond = processed / seconds;
+            String eta = bytesPerSecond > 0
+                ? String.format("%ds", (long) Math.ceil((total - processed) / bytesPerSecond))
+                : "?";
+            updateStatus(String.format("%s: %s / %s, %s/s, noch %s",
+                source.getFileName(), formatBytes(processed), formatBytes(total),
+                formatBytes(bytesPerSecond), eta), false);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (state.compareAndSet(NEW, EXITED) || state.get() == EXITED) {
+                    cancelled();
+                } else {
+                    updateStatus("Dateiverarbeitung wird abgebrochen ...", false);
+                }
+                return;
             }
+            fileJobFinished(this);
+            try {
+                get();
+                updateStatus((encrypt ? "Datei verschlüsselt: " : "Datei entschlüsselt: ") + target, false);
+            } catch (Exception ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                updateStatus("Fehler bei der Dateiverarbeitung: " + cause.getMessage(), true);
+            }
+        }
 
-            if (showVerboseOutput.isSelected()) {
-                encryptedTextArea.append("Mit Padding: " + binaryText + "\n\n");
+        // The background thread has exited, the partial target is deleted
+        private void cancelled() {
+            if (fileJob == this) {
+                fileJobFinished(this);
+                updateStatus("Dateiverarbeitung abgebrochen", true);
             }
+        }
+    }
 
-            // Split into blocks of 16 bits
-            String[] blocks = Helper.splitString(binaryText, 16);
+    /**
+     * Accepts dropped files and passes everything else on to the original handler of the component
+     */
+    private static class FileDropHandler extends TransferHandler {
+        private static final long serialVersionUID = 1L;
 
-            // Generate IV (first block) - for simplicity, use a fixed IV here
-            String iv = "0000010011010010";
+        private final TransferHandler delegate;
+        private final transient Consumer<List<File>> fileConsumer;
 
-            // Encrypt using CTR mode
-            StringBuilder encryptedText = new StringBuilder();
-            encryptedText.append(iv);  // First block is IV
+        FileDropHandler(TransferHandler delegate, Consumer<List<File>> fileConsumer) {
+            this.delegate = delegate;
+            this.fileConsumer = fileConsumer;
+        }
 
-            if (showVerboseOutput.isSelected()) {
-                encryptedTextArea.append("Initialisierungsvektor (IV): " + iv + "\n\n");
-                encryptedTextArea.append("Verschlüsselung im CTR-Modus:\n");
+        @Override
+        public boolean canImport(TransferSupport support) {
+            if (support.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+                return true;
             }
+            return delegate != null && delegate.canImport(support);
+        }
 
-            for (int i = 0; i < blocks.length; i++) {
-                String counterBlock = Helper.binaryStringAddNumber(iv, i);
-                String encryptedCounter = spn.encrypt(counterBlock);
-                String cipherBlock = Helper.xorBinaryStrings(encryptedCounter, blocks[i]);
-
-                if (showVerboseOutput.isSelected()) {
-                    encryptedTextArea.append("Block " + (i + 1) + ":\n");
-                    encryptedTextArea.append("  Counter: " + counterBlock + "\n");
-                    encryptedTextArea.append("  Verschlüsselter Counter: " + encryptedCounter + "\n");
-                    encryptedTextArea.append("  Klartext: " + blocks[i] + "\n");
-                    encryptedTextArea.append("  Geheimtext: " + cipherBlock + "\n\n");
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean importData(TransferSupport support) {
+            if (support.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+                try {
+                    fileConsumer.accept((List<File>) support.getTransferable()
+                        .getTransferData(DataFlavor.javaFileListFlavor));
+                    return true;
+                } catch (Exception e) {
+                    return false;
                 }
+            }
+            return delegate != null && delegate.importData(support);
+        }
+
+        @Override
+        public int getSourceActions(JComponent c) {
+            return delegate != null ? delegate.getSourceActions(c) : NONE;
+        }
 
-                encryptedText.append(cipherBlock);
+        @Override
+        public void exportAsDrag(JComponent comp, InputEvent e, int action) {
+            if (delegate != null) {
+                delegate.exportAsDrag(comp, e, action);
             }
+        }
+
+        @Override
+        public void exportToClipboard(JComponent comp, Clipboard clip, int action) {
+            if (delegate != null) {
+                delegate.exportToClipboard(comp, clip, action);
+            }
+        }
+    }
+
+    private void styleButton(JButton button, Color color) {
+        button.setBackground(color);
+        button.setForeground(Color.WHITE);
+        button.setFont(LABEL_FONT);
+        button.setFocusPainted(false);
+        button.setBorderPainted(false);
+        button.setPreferredSize(new Dimension(140, 40));
+        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+    }
+
+    private void encryptText() {
+        String inputText = inputTextArea.getText();
+        if (inputText.isEmpty()) {
+            updateStatus("Fehler: Bitte geben Sie Text zum Verschlüsseln ein.", true);
+            return;
+        }
+        long blocks = SPNTextCodec.encodedBlocks(inputText);
+        if (blocks > SPNBlockCipher.MAX_CTR_BLOCKS) {
+            updateStatus("Fehler: Der Text ist zu lang (höchstens " + SPNBlockCipher.MAX_CTR_BLOCKS + " Blöcke).", true);
+            return;
+        }
+
+        try {
+            // Random IV whose counters were never used with this key (first block)
+            int iv = nonceService.nextIv(NONCE_KEY_ID, (int) blocks);
 
+            // UTF-8 encoding, padding and CTR in one pass, without binary strings of the plaintext
+            ByteArrayOutputStream ciphertext = new ByteArrayOutputStream((int) blocks * 2);
+            textCodec.encrypt(inputText, blockSpn, iv, ciphertext::write);
+            byte[] cipherBytes = ciphertext.toByteArray();
+
+            StringBuilder encryptedText = new StringBuilder((cipherBytes.length / 2 + 1) * 16);
+            encryptedText.append(toBinaryBlock(iv));  // First block is IV
+            appendBinaryBlocks(encryptedText, cipherBytes, 0, cipherBytes.length / 2);
+
+            // The per-block details are not written into the text area anymore, the trace table
+            // recomputes them for the rows that are actually visible
             if (showVerboseOutput.isSelected()) {
-                encryptedTextArea.append("Kompletter Geheimtext:\n");
+                showTrace(cipherBytes, iv);
+            } else {
+                tracePanel.setVisible(false);
             }
 
-            encryptedTextArea.append(encryptedText.toString());
+            encryptedTextArea.setText(encryptedText.toString());
+            liveCiphertextShown = false;
             copyEncryptedButton.setEnabled(true);
             updateStatus("Text erfolgreich verschlüsselt", false);
         } catch (Exception ex) {
@@ -339,23 +722,31 @@ public class SPNWithGUI extends JFrame {
                     .orElse("");
             }
 
-            String[] cipherBlocks = Helper.splitString(encryptedText, 16);
+            String binary = encryptedText.replaceAll("\\s", "");
+            if (binary.length() < 32 || binary.length() % 16 != 0) {
+                updateStatus("Fehler: Der Geheimtext muss aus dem IV und mindestens einem Block zu 16 Binärziffern bestehen.", true);
+                return;
+            }
+            // IV and ciphertext blocks
+            byte[] data = binaryToBytes(binary, 0);
+            int iv = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
 
             if (showVerboseOutput.isSelected()) {
                 decryptedTextArea.setText("Entschlüsselung im CTR-Modus:\n");
-                decryptedTextArea.append("Anzahl der Blöcke: " + cipherBlocks.length + "\n");
-                decryptedTextArea.append("IV: " + cipherBlocks[0] + "\n\n");
+                decryptedTextArea.append("Anzahl der Blöcke: " + data.length / 2 + "\n");
+                decryptedTextArea.append("IV: " + binary.substring(0, 16) + "\n\n");
+
+                // Only the verbose output needs the decrypted bits, the text is decoded from the bytes
+                byte[] plain = Arrays.copyOfRange(data, 2, data.length);
+                blockSpn.ctrXor(iv, 0, plain, 0, plain.length);
+                StringBuilder decryptedBinary = new StringBuilder(plain.length * 8);
+                appendBinaryBlocks(decryptedBinary, plain, 0, plain.length / 2);
+                decryptedTextArea.append("Entschlüsselter Binärtext: " + decryptedBinary + "\n\n");
             } else {
                 decryptedTextArea.setText("");
             }
 
-            String decryptedBinary = spn.ctr(cipherBlocks);
-
-            if (showVerboseOutput.isSelected()) {
-                decryptedTextArea.append("Entschlüsselter Binärtext: " + decryptedBinary + "\n\n");
-            }
-
-            String decryptedText = Helper.binaryToText(decryptedBinary);
+            String decryptedText = textCodec.decrypt(blockSpn, iv, data, 2, data.length - 2);
 
             if (showVerboseOutput.isSelected()) {
                 decryptedTextArea.append("Entschlüsselter Text: ");
@@ -369,15 +760,269 @@ public class SPNWithGUI extends JFrame {
         }
     }
 
+    private void scheduleLiveEncryption(int changedOffset) {
+        liveChangedFrom = Math.min(liveChangedFrom, changedOffset);
+        if (liveEncryption != null && liveEncryption.isSelected()) {
+            // Restarting the timer collapses a burst of keystrokes into a single update
+            liveTimer.restart();
+        }
+    }
+
+    /**
+     * Updates the ciphertext after the input changed in live mode
+     *
+     * CTR encrypts every block independently, so only the text from the first changed character
+     * on is encoded again, starting at the last checkpoint before it whose UTF-8 offset is known.
+     * Of these blocks only the ones whose plaintext differs from the last update are replaced in
+     * the ciphertext area and the trace table. Typing at the end of a large document therefore costs a few blocks,
+     * an edit in the middle the rest of the document. The encrypted counters do not depend on the
+     * text and are cached, new ones are only computed when the text grows.
+     */
+    private void updateLiveEncryption() {
+        if (!liveEncryption.isSelected()) {
+            return;
+        }
+        Document document = inputTextArea.getDocument();
+        int chars = document.getLength();
+        int changedFrom = liveCiphertextShown ? Math.min(liveChangedFrom, liveChars) : 0;
+        liveChangedFrom = Integer.MAX_VALUE;
+        if (chars == 0) {
+            encryptedTextArea.setText("");
+            liveCiphertextShown = false;
+            copyEncryptedButton.setEnabled(false);
+            tracePanel.setVisible(false);
+            updateStatus("Live-Verschlüsselung: kein Text", false);
+            return;
+        }
+        if (!liveCiphertextShown) {
+            liveIv = SPNNonceService.randomIv();
+            liveKeystreamLength = 0;
+            liveLength = 0;
+            liveTraceModel = null;
+        }
+
+        // Characters before the checkpoint are unchanged, a checkpoint inside a surrogate pair is skipped
+        int checkpoint = changedFrom > 0 ? (changedFrom - 1) / LIVE_CHECKPOINT : 0;
+        while (checkpoint > 0 && splitsSurrogatePair(document, checkpoint * LIVE_CHECKPOINT)) {
+            checkpoint--;
+        }
+        int startChar = checkpoint * LIVE_CHECKPOINT;
+        int startByte = liveOffsets[checkpoint];
+        int firstBlock = startByte / 2;
+        int newLength = encodeLiveText(document, startChar, chars, checkpoint, startByte);
+        int newCount = newLength / 2;
+        if (newCount > SPNBlockCipher.MAX_CTR_BLOCKS) {
+            encryptedTextArea.setText("");
+            liveCiphertextShown = false;
+            copyEncryptedButton.setEnabled(false);
+            updateStatus("Live-Verschlüsselung: Text zu lang (höchstens " + SPNBlockCipher.MAX_CTR_BLOCKS + " Blöcke)", true);
+            return;
+        }
+        int oldCount = liveLength / 2;
+        int commonCount = Math.min(oldCount, newCount);
+
+        // First and last block within the common range whose plaintext changed, the scratch
+        // array holds the blocks from firstBlock on
+        int first = firstBlock;
+        while (first < commonCount && sameLiveBlock(first, firstBlock)) {
+            first++;
+        }
+        int last = commonCount - 1;
+        while (last >= first && sameLiveBlock(last, firstBlock)) {
+            last--;
+        }
+
+        ensureLiveKeystream(newCount);
+        if (livePlain.length < newLength) {
+            livePlain = Arrays.copyOf(livePlain, Math.max(newLength, 2 * livePlain.length));
+            liveCipher = Arrays.copyOf(liveCipher, livePlain.length);
+        }
+        System.arraycopy(liveScratch, 0, livePlain, 2 * firstBlock, newLength - 2 * firstBlock);
+        for (int i = firstBlock; i < newCount; i++) {
+            int block = (((livePlain[2 * i] & 0xFF) << 8) | (livePlain[2 * i + 1] & 0xFF)) ^ liveKeystream[i];
+            liveCipher[2 * i] = (byte) (block >>> 8);
+            liveCipher[2 * i + 1] = (byte) block;
+        }
+
+        int updated = 0;
+        if (!liveCiphertextShown) {
+            StringBuilder cipher = new StringBuilder((newCount + 1) * 16);
+            cipher.append(toBinaryBlock(liveIv));
+            appendBinaryBlocks(cipher, liveCipher, 0, newCount);
+            encryptedTextArea.setText(cipher.toString());
+            updated = newCount;
+        } else {
+            // The IV occupies the first 16 characters, block i starts at 16 * (i + 1)
+            if (first <= last) {
+                StringBuilder changed = new StringBuilder((last - first + 1) * 16);
+                appendBinaryBlocks(changed, liveCipher, first, last + 1);
+                encryptedTextArea.replaceRange(changed.toString(), (first + 1) * 16, (last + 2) * 16);
+                updated += last - first + 1;
+            }
+            if (newCount > oldCount) {
+                StringBuilder appended = new StringBuilder((newCount - oldCount) * 16);
+                appendBinaryBlocks(appended, liveCipher, oldCount, newCount);
+                encryptedTextArea.append(appended.toString());
+                updated += newCount - oldCount;
+            } else if (newCount < oldCount) {
+                encryptedTextArea.replaceRange("", (newCount + 1) * 16, (oldCount + 1) * 16);
+            }
+        }
+
+        liveLength = newLength;
+        liveChars = chars;
+        liveCiphertextShown = true;
+        copyEncryptedButton.setEnabled(true);
+        if (!showVerboseOutput.isSelected()) {
+            liveTraceModel = null;
+        } else if (liveTraceModel == null) {
+            liveTraceModel = new BlockTraceTableModel(blockSpn, liveCipher, newCount, liveIv);
+            showTrace(liveTraceModel);
+        } else {
+            // Only the changed and appended rows are recomputed, like in the ciphertext area
+            liveTraceModel.update(liveCipher, newCount, first, last);
+        }
+        updateStatus("Live-Verschlüsselung: " + updated + " von " + newCount + " Blöcken aktualisiert", false);
+    }
+
+    /**
+     * Encodes the characters from startChar on into liveScratch and pads them
+     *
+     * liveScratch starts at the block of startByte, a byte of the unchanged text before startByte
+     * is copied in front. The checkpoints from the given one on are recorded again.
+     *
+     * @return Padded length of the whole plaintext in bytes
+     */
+    private int encodeLiveText(Document document, int startChar, int chars, int checkpoint, int startByte) {
+        int base = startByte & ~1;
+        int capacity = (startByte - base) + 3 * (chars - startChar) + 2;
+        if (liveScratch.length < capacity) {
+            liveScratch = new byte[Math.max(capacity, 2 * liveScratch.length)];
+        }
+        if (liveOffsets.length < chars / LIVE_CHECKPOINT + 2) {
+            liveOffsets = Arrays.copyOf(liveOffsets, Math.max(chars / LIVE_CHECKPOINT + 2, 2 * liveOffsets.length));
+        }
+        if (startByte > base) {
+            liveScratch[0] = livePlain[base];
+        }
+        try {
+            document.getText(startChar, chars - startChar, liveSegment);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        int length = startByte - base;
+        int slice = 0;
+        for (int boundary = LIVE_CHECKPOINT; slice < liveSegment.length(); boundary += LIVE_CHECKPOINT) {
+            liveOffsets[checkpoint++] = base + length;
+            int sliceEnd = Math.min(boundary, liveSegment.length());
+            // A surrogate pair stays in one slice, the next checkpoint then starts one character later
+            if (sliceEnd < liveSegment.length() && Character.isHighSurrogate(liveSegment.charAt(sliceEnd - 1))
+                && Character.isLowSurrogate(liveSegment.charAt(sliceEnd))) {
+                sliceEnd++;
+            }
+            length += textCodec.encode(liveSegment, slice, sliceEnd, liveScratch, length);
+            slice = sliceEnd;
+        }
+        // Padding: a '1' bit followed by '0' bits up to the next block boundary
+        liveScratch[length++] = (byte) 0x80;
+        if ((length & 1) != 0) {
+            liveScratch[length++] = 0;
+        }
+        return base + length;
+    }
+
+    // Whether the characters at offset - 1 and offset form a surrogate pair
+    private static boolean splitsSurrogatePair(Document document, int offset) {
+        try {
+            String pair = document.getText(offset - 1, 2);
+            return Character.isHighSurrogate(pair.charAt(0)) && Character.isLowSurrogate(pair.charAt(1));
+        } catch (BadLocationException e) {
+            return false;
+        }
+    }
+
+    // Whether block i of liveScratch (which starts at block firstBlock) equals the shown plaintext
+    private boolean sameLiveBlock(int i, int firstBlock) {
+        int scratch = 2 * (i - firstBlock);
+        return liveScratch[scratch] == livePlain[2 * i] && liveScratch[scratch + 1] == livePlain[2 * i + 1];
+    }
+
+    // 16-character binary string of a block packed into an int
+    private static String toBinaryBlock(int block) {
+        return Integer.toBinaryString(block | 0x10000).substring(1);
+    }
+
+    // Encrypts the counters for all blocks up to blockCount that have not been encrypted yet
+    private void ensureLiveKeystream(int blockCount) {
+        if (liveKeystream.length < blockCount) {
+            liveKeystream = Arrays.copyOf(liveKeystream, Math.max(blockCount, 2 * liveKeystream.length));
+        }
+        for (int i = liveKeystreamLength; i < blockCount; i++) {
+            liveKeystream[i] = blockSpn.encryptBlock((liveIv + i) & 0xFFFF);
+        }
+        liveKeystreamLength = Math.max(liveKeystreamLength, blockCount);
+    }
+
+    // Appends the blocks from..to of the data as binary digits, 16 per block
+    private static void appendBinaryBlocks(StringBuilder target, byte[] data, int from, int to) {
+        for (int i = 2 * from; i < 2 * to; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                target.append((char) ('0' + ((data[i] >>> bit) & 1)));
+            }
+        }
+    }
+
+    // Bytes of a string of binary digits starting at from, the length after from must be a multiple of 8
+    private static byte[] binaryToBytes(CharSequence binary, int from) {
+        byte[] data = new byte[(binary.length() - from) / 8];
+        for (int i = 0; i < data.length; i++) {
+            int value = 0;
+            for (int bit = from + 8 * i; bit < from + 8 * i + 8; bit++) {
+                char c = binary.charAt(bit);
+                if (c != '0' && c != '1') {
+                    throw new IllegalArgumentException("Only the digits 0 and 1 are allowed");
+                }
+                value = (value << 1) | (c - '0');
+            }
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
     private void resetFields() {
         inputTextArea.setText("");
         encryptedTextArea.setText("");
         decryptedTextArea.setText("");
+        traceTable.setModel(new BlockTraceTableModel(blockSpn, new byte[0], 0));
+        liveTraceModel = null;
+        liveCiphertextShown = false;
+        tracePanel.setVisible(false);
         copyEncryptedButton.setEnabled(false);
         copyDecryptedButton.setEnabled(false);
         updateStatus("Alle Felder zurückgesetzt", false);
     }
 
+    /**
+     * Copies the ciphertext, a live preview is encrypted under a registered IV first
+     *
+     * The live preview keeps its untracked IV for every edit, so two copied versions of an edited
+     * text would share their keystream. Before a preview leaves the window it is therefore
+     * encrypted like with "Verschlüsseln", with an IV of the nonce service, and the next edit
+     * starts a new preview with a new IV.
+     */
+    private void copyEncryptedText() {
+        if (liveCiphertextShown) {
+            // A pending update would show the preview again
+            liveTimer.stop();
+            encryptText();
+            if (liveCiphertextShown) {
+                // Encryption failed, the status shows why
+                return;
+            }
+        }
+        copyToClipboard(encryptedTextArea.getText());
+    }
+
     private void copyToClipboard(String text) {
         if (text != null && !text.isEmpty()) {
             java.awt.Toolkit.getDefaultToolkit().getSystemClipboard()
@@ -391,23 +1036,9 @@ public class SPNWithGUI extends JFrame {
         statusLabel.setForeground(isError ? ACCENT_COLOR : TEXT_COLOR);
     }
 
-    private String textToBinary(String text) {
-        StringBuilder binary = new StringBuilder();
-        for (char character : text.toCharArray()) {
-            // Convert each character to its 8-bit binary representation
-            String binaryChar = Integer.toBinaryString(character);
-            // Pad with leading zeros to ensure 8 bits
-            while (binaryChar.length() < 8) {
-                binaryChar = "0" + binaryChar;
-            }
-            binary.append(binaryChar);
-        }
-        return binary.toString();
-    }
-
     public static void main(String[] args) {
-        // Run the validation test first
-        runValidationTest();
+        // The validation test runs next to the start-up of the window instead of delaying it
+        Thread.ofVirtual().name("spn-validation").start(SPNWithGUI::runValidationTest);
 
         // Set a more modern look and feel
         try {
@@ -462,6 +1093,138 @@ public class SPNWithGUI extends JFrame {
         System.out.println();
     }
 
+    // Table model for the verbose output: one row per CTR block, computed lazily
+    static class BlockTraceTableModel extends AbstractTableModel {
+        // Number of recently viewed rows that are kept, enough for a few screens of scrolling
+        private static final int CACHE_SIZE = 256;
+        private static final long serialVersionUID = 1L;
+
+        private final transient CombinedSPN.SPN spn;
+        private byte[] ciphertext;
+        private final int iv;
+        private int blockCount;
+        private final String[] columnNames;
+        private final transient Map<Integer, String[]> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        /**
+         * @param spn The cipher used to recompute the rows
+         * @param ciphertext The CTR ciphertext without IV (even length), the plaintext is recovered per row
+         * @param iv The initialisation vector of the CTR encryption
+         */
+        BlockTraceTableModel(CombinedSPN.SPN spn, byte[] ciphertext, int iv) {
+            this(spn, ciphertext, ciphertext.length / 2, iv);
+        }
+
+        /**
+         * @param ciphertext The CTR ciphertext without IV, only the first blockCount blocks are shown;
+         *                   the array is not copied, see update
+         */
+        BlockTraceTableModel(CombinedSPN.SPN spn, byte[] ciphertext, int blockCount, int iv) {
+            this.spn = spn;
+            this.ciphertext = ciphertext;
+            this.iv = iv;
+            this.blockCount = blockCount;
+            this.columnNames = createColumnNames(spn.getRounds());
+        }
+
+        /**
+         * Takes over a changed ciphertext with the same IV and notifies the table only about the
+         * affected rows, so an edit costs the changed blocks instead of the whole trace
+         *
+         * @param first First changed block of the common range
+         * @param last Last changed block of the common range, below first if none changed
+         */
+        void update(byte[] ciphertext, int blockCount, int first, int last) {
+            int oldCount = this.blockCount;
+            int commonCount = Math.min(oldCount, blockCount);
+            this.ciphertext = ciphertext;
+            this.blockCount = blockCount;
+            cache.keySet().removeIf(row -> (row >= first && row <= last) || row >= commonCount);
+            if (first <= last) {
+                fireTableRowsUpdated(first, last);
+            }
+            if (blockCount > oldCount) {
+                fireTableRowsInserted(oldCount, blockCount - 1);
+            } else if (blockCount < oldCount) {
+                fireTableRowsDeleted(blockCount, oldCount - 1);
+            }
+        }
+
+        private static String[] createColumnNames(int rounds) {
+            String[] names = new String[3 * rounds + 4];
+            int i = 0;
+            names[i++] = "Block";
+            names[i++] = "Counter";
+            names[i++] = "Runde 0: Schlüssel";
+            for (int round = 1; round < rounds; round++) {
+                names[i++] = "Runde " + round + ": S-Box";
+                names[i++] = "Runde " + round + ": Permutation";
+                names[i++] = "Runde " + round + ": Schlüssel";
+            }
+            names[i++] = "Runde " + rounds + ": S-Box";
+            names[i++] = "Verschlüsselter Counter";
+            names[i++] = "Klartext";
+            names[i] = "Geheimtext";
+            return names;
+        }
+
+        @Override
+        public int getRowCount() {
+            return blockCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            return cache.computeIfAbsent(rowIndex, this::computeRow)[columnIndex];
+        }
+
+        // Recomputes the complete trace of a single block, only called for rows that are painted
+        private String[] computeRow(int block) {
+            int counter = (iv + block) & 0xFFFF;
+            int cipherBlock = ((ciphertext[2 * block] & 0xFF) << 8) | (ciphertext[2 * block + 1] & 0xFF);
+            String[] row = new String[columnNames.length];
+            row[0] = String.valueOf(block + 1);
+            row[1] = toBinaryBlock(counter);
+
+            // The cipher reports the states of every round, the output of the last round is the
+            // encrypted counter and gets its own column
+            int rounds = spn.getRounds();
+            int encryptedCounter = spn.encryptBlock(counter,
+                (round, afterSBox, afterPermutation, afterKey) -> {
+                    if (round == 0) {
+                        row[2] = toBinaryBlock(afterKey);
+                    } else if (round < rounds) {
+                        int column = 3 * round;
+                        row[column] = toBinaryBlock(afterSBox);
+                        row[column + 1] = toBinaryBlock(afterPermutation);
+                        row[column + 2] = toBinaryBlock(afterKey);
+                    } else {
+                        row[3 * rounds] = toBinaryBlock(afterSBox);
+                    }
+                });
+            row[3 * rounds + 1] = toBinaryBlock(encryptedCounter);
+            row[row.length - 2] = toBinaryBlock(cipherBlock ^ encryptedCounter);
+            row[row.length - 1] = toBinaryBlock(cipherBlock);
+            return row;
+        }
+
+    }
+
     // SPN Class Implementation
     static class SPN {
         // S-Box as specified in the assignment
@@ -764,22 +1527,5 @@ public class SPNWithGUI extends JFrame {
             }
             return result.toString();
         }
-
-        public static String binaryToText(String binary) {
-            // Find the padding marker (last '1') and remove padding
-            int lastOne = binary.lastIndexOf('1');
-            if (lastOne != -1) {
-                binary = binary.substring(0, lastOne);
-            }
-
-            StringBuilder text = new StringBuilder();
-            // Process the binary string in 8-bit chunks (one byte per character)
-            for (int i = 0; i + 8 <= binary.length(); i += 8) {
-                String byteStr = binary.substring(i, i + 8);
-                int charCode = Integer.parseInt(byteStr, 2);
-                text.append((char) charCode);
-            }
-            return text.toString();
-        }
     }
 }
\ No newline at end of file